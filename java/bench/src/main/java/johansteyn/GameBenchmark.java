@@ -0,0 +1,256 @@
+package johansteyn;
+
+import java.awt.*;
+import java.awt.event.KeyEvent;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Benchmarks for the hot paths of the game, on square boards of various sizes.
+ * Run from the shaded jar, which adds the GC profiler so that allocations per op are reported.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class GameBenchmark {
+	private static final long SEED = 42;
+
+	@State(Scope.Thread)
+	public static class Board {
+		@Param({"30", "300", "3000"})
+		int size;
+		GameModel model;
+
+		@Setup(Level.Trial)
+		public void setUp() {
+			model = new GameModel(size, size);
+			model.reset(1, SEED);
+		}
+	}
+
+	/**
+	 * A new board with a vertical trail through the middle of the inside area, ready to be captured.
+	 */
+	@State(Scope.Thread)
+	public static class Trail {
+		@Param({"30", "300", "3000"})
+		int size;
+		@Param({"1", "100", "10000"})
+		int enemies;
+		@Param({"true", "false"})
+		boolean parallel;
+		GameModel model;
+
+		@Setup(Level.Trial)
+		public void setUp() {
+			model = new GameModel(size, size);
+			if (!parallel) {
+				model.parallelCells = Integer.MAX_VALUE;
+			}
+		}
+
+		@Setup(Level.Invocation)
+		public void draw() {
+			model.reset(1, SEED);
+			for (int i = 1; i < enemies; i++) {
+				model.addEnemy(true);
+			}
+			int col = size / 2;
+			for (int row = 0; row < size; row++) {
+				if (model.getCell(row, col) == GameModel.INSIDE) {
+					model.setCell(row, col, GameModel.ACTIVE);
+				}
+			}
+		}
+	}
+
+	@State(Scope.Thread)
+	public static class Crowd {
+		@Param({"30", "300", "3000"})
+		int size;
+		@Param({"1", "100", "10000", "50000"})
+		int enemies;
+		@Param({"true", "false"})
+		boolean parallel;
+		GameModel model;
+
+		@Setup(Level.Trial)
+		public void setUp() {
+			model = new GameModel(size, size);
+			if (!parallel) {
+				model.parallelEnemies = Integer.MAX_VALUE;
+			}
+			model.reset(1, SEED);
+			for (int i = 1; i < enemies; i++) {
+				model.addEnemy(true);
+			}
+		}
+	}
+
+	@State(Scope.Thread)
+	public static class Screen {
+		@Param({"30", "300", "3000"})
+		int size;
+		GameModel model;
+		Game game;
+		File dir;
+		BoardImage board;
+		BufferedImage image;
+		Graphics graphics;
+
+		@Setup(Level.Trial)
+		public void setUp() throws IOException, InterruptedException {
+			model = new GameModel(size, size);
+			model.reset(1, SEED);
+			image = new BufferedImage(600, 620, BufferedImage.TYPE_INT_RGB);
+			graphics = image.getGraphics();
+			dir = useTempDir();
+			game = new Game(size, size);
+			game.setSize(image.getWidth(), image.getHeight());
+			// The first paint shows the help screen, which enter dismisses
+			game.paint(graphics);
+			game.keyPressed(new KeyEvent(game, KeyEvent.KEY_PRESSED, 0, 0, KeyEvent.VK_ENTER, '\n'));
+			game.awaitSnapshot();
+			Color[] colors = {Color.green, Color.black, Color.yellow, Color.black, Color.gray, Color.white};
+			board = new BoardImage(colors, Color.white);
+			// As the game fits the board to 600 pixels
+			int cellSize = Math.max(600 / size, 1);
+			int perPixel = (size + 599) / 600;
+			board.resize(model, cellSize, cellSize, perPixel, perPixel);
+		}
+
+		@TearDown(Level.Trial)
+		public void tearDown() throws InterruptedException {
+			game.shutdown();
+			delete(dir);
+			graphics.dispose();
+		}
+	}
+
+	/**
+	 * A game on the default board, paused once the overlay images have loaded.
+	 */
+	@State(Scope.Thread)
+	public static class Paused {
+		Game game;
+		File dir;
+		BufferedImage image;
+		Graphics graphics;
+
+		@Setup(Level.Trial)
+		public void setUp() throws IOException, InterruptedException {
+			image = new BufferedImage(600, 620, BufferedImage.TYPE_INT_RGB);
+			graphics = image.getGraphics();
+			dir = useTempDir();
+			game = new Game();
+			game.setSize(image.getWidth(), image.getHeight());
+			game.awaitImages();
+			game.paint(graphics);
+			game.keyPressed(new KeyEvent(game, KeyEvent.KEY_PRESSED, 0, 0, KeyEvent.VK_ENTER, '\n'));
+			game.keyPressed(new KeyEvent(game, KeyEvent.KEY_PRESSED, 0, 0, KeyEvent.VK_P, 'p'));
+			game.awaitSnapshot();
+		}
+
+		@TearDown(Level.Trial)
+		public void tearDown() throws InterruptedException {
+			game.shutdown();
+			delete(dir);
+			graphics.dispose();
+		}
+	}
+
+	/**
+	 * Makes the games created from now on keep their leaderboard in a new temporary directory,
+	 * instead of adding the games benchmarked to the player's.
+	 */
+	static File useTempDir() throws IOException {
+		File dir = Files.createTempDirectory("xonix").toFile();
+		System.setProperty("xonix.dir", dir.getPath());
+		return dir;
+	}
+
+	static void delete(File dir) {
+		File[] files = dir.listFiles();
+		if (files != null) {
+			for (int i = 0; i < files.length; i++) {
+				files[i].delete();
+			}
+		}
+		dir.delete();
+	}
+
+	/**
+	 * The capture that follows a closed trail: labelling the inside area and sweeping away the regions without enemies.
+	 */
+	@Benchmark
+	public GameModel capture(Trail trail) {
+		trail.model.capture();
+		return trail.model;
+	}
+
+	@Benchmark
+	public int percentageArea(Board board) {
+		return board.model.percentageArea();
+	}
+
+	@Benchmark
+	public GameModel moveEnemies(Crowd crowd) {
+		crowd.model.moveEnemies();
+		return crowd.model;
+	}
+
+	@Benchmark
+	public GameModel play(Board board) {
+		board.model.play(false);
+		return board.model;
+	}
+
+	/**
+	 * A repaint of the whole game into an offscreen image.
+	 */
+	@Benchmark
+	public BufferedImage paint(Screen screen) {
+		screen.game.paint(screen.graphics);
+		return screen.image;
+	}
+
+	/**
+	 * A repaint of a paused game, which draws the paused overlay over the board.
+	 */
+	@Benchmark
+	public BufferedImage paintPaused(Paused paused) {
+		paused.game.paint(paused.graphics);
+		return paused.image;
+	}
+
+	/**
+	 * A full redraw of the board image, as after a new board or a resize.
+	 */
+	@Benchmark
+	public BufferedImage redraw(Screen screen) {
+		screen.model.invalidate();
+		screen.board.update(screen.model);
+		return screen.image;
+	}
+
+	public static void main(String[] args) throws RunnerException, CommandLineOptionException {
+		System.setProperty("java.awt.headless", "true");
+		new Runner(new OptionsBuilder()
+			.parent(new CommandLineOptions(args))
+			.addProfiler(GCProfiler.class)
+			.jvmArgsAppend("-Djava.awt.headless=true")
+			.build()).run();
+	}
+}
@@ -0,0 +1,195 @@
+package johansteyn;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.EventType;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * The game's hooks as Java Flight Recorder events, in the Xonix category.
+ * Nothing is made or timed unless a recording has the event enabled.
+ * Built by the jfr profile, for JDK 11 and later.
+ */
+public class JfrGameEvents extends GameEvents {
+	private static final EventType TICK = EventType.getEventType(TickEvent.class);
+	private static final EventType CAPTURE = EventType.getEventType(CaptureEvent.class);
+	private static final EventType CRASH = EventType.getEventType(CrashEvent.class);
+	private static final EventType LEVEL_START = EventType.getEventType(LevelStartEvent.class);
+	private static final EventType HIGH_SCORE_SAVE = EventType.getEventType(HighScoreSaveEvent.class);
+	private static final EventType REPAINT = EventType.getEventType(RepaintEvent.class);
+
+	public Object beginTick() {
+		if (!TICK.isEnabled()) {
+			return null;
+		}
+		TickEvent event = new TickEvent();
+		event.begin();
+		return event;
+	}
+
+	public void endTick(Object tick, long ticks, int event, int enemies) {
+		TickEvent e = (TickEvent) tick;
+		e.end();
+		if (e.shouldCommit()) {
+			e.ticks = ticks;
+			e.event = event;
+			e.enemies = enemies;
+			e.commit();
+		}
+	}
+
+	public Object beginCapture() {
+		if (!CAPTURE.isEnabled()) {
+			return null;
+		}
+		CaptureEvent event = new CaptureEvent();
+		event.begin();
+		return event;
+	}
+
+	public void endCapture(Object capture, int cells, int enemies) {
+		CaptureEvent e = (CaptureEvent) capture;
+		e.end();
+		if (e.shouldCommit()) {
+			e.cells = cells;
+			e.enemies = enemies;
+			e.commit();
+		}
+	}
+
+	public void crash(int level, int lives, long ticks) {
+		if (CRASH.isEnabled()) {
+			CrashEvent e = new CrashEvent();
+			e.level = level;
+			e.lives = lives;
+			e.ticks = ticks;
+			e.commit();
+		}
+	}
+
+	public void levelStart(int level, int enemies) {
+		if (LEVEL_START.isEnabled()) {
+			LevelStartEvent e = new LevelStartEvent();
+			e.level = level;
+			e.enemies = enemies;
+			e.commit();
+		}
+	}
+
+	public Object beginHighScoreSave() {
+		if (!HIGH_SCORE_SAVE.isEnabled()) {
+			return null;
+		}
+		HighScoreSaveEvent event = new HighScoreSaveEvent();
+		event.begin();
+		return event;
+	}
+
+	public void endHighScoreSave(Object save, int games) {
+		HighScoreSaveEvent e = (HighScoreSaveEvent) save;
+		e.end();
+		if (e.shouldCommit()) {
+			e.games = games;
+			e.commit();
+		}
+	}
+
+	public Object beginRepaint() {
+		if (!REPAINT.isEnabled()) {
+			return null;
+		}
+		RepaintEvent event = new RepaintEvent();
+		event.begin();
+		return event;
+	}
+
+	public void endRepaint(Object repaint, int width, int height) {
+		RepaintEvent e = (RepaintEvent) repaint;
+		e.end();
+		if (e.shouldCommit()) {
+			e.width = width;
+			e.height = height;
+			e.commit();
+		}
+	}
+
+	@Name("johansteyn.Tick")
+	@Label("Tick")
+	@Category("Xonix")
+	@Description("A step of the game and publishing it to be drawn")
+	static class TickEvent extends Event {
+		@Label("Ticks")
+		@Description("Steps since the game started")
+		long ticks;
+
+		@Label("Event")
+		@Description("What the step led to: 0 tick, 1 capture, 2 crash, 3 level, 4 game over")
+		int event;
+
+		@Label("Enemies")
+		int enemies;
+	}
+
+	@Name("johansteyn.Capture")
+	@Label("Capture")
+	@Category("Xonix")
+	@Description("Filling in the area the player cut off")
+	static class CaptureEvent extends Event {
+		@Label("Cells Converted")
+		@Description("Trail and inside cells that became outside cells")
+		int cells;
+
+		@Label("Enemies Flood-Filled")
+		@Description("Inside enemies whose areas were flood-filled and kept")
+		int enemies;
+	}
+
+	@Name("johansteyn.Crash")
+	@Label("Crash")
+	@Category("Xonix")
+	static class CrashEvent extends Event {
+		@Label("Level")
+		int level;
+
+		@Label("Lives Left")
+		int lives;
+
+		@Label("Ticks")
+		long ticks;
+	}
+
+	@Name("johansteyn.LevelStart")
+	@Label("Level Start")
+	@Category("Xonix")
+	static class LevelStartEvent extends Event {
+		@Label("Level")
+		int level;
+
+		@Label("Enemies")
+		int enemies;
+	}
+
+	@Name("johansteyn.HighScoreSave")
+	@Label("High Score Save")
+	@Category("Xonix")
+	@Description("Games added to the leaderboard and forced out to disk")
+	static class HighScoreSaveEvent extends Event {
+		@Label("Games")
+		int games;
+	}
+
+	@Name("johansteyn.Repaint")
+	@Label("Full Repaint")
+	@Category("Xonix")
+	@Description("A whole frame drawn, and presented when rendering actively")
+	static class RepaintEvent extends Event {
+		@Label("Width")
+		int width;
+
+		@Label("Height")
+		int height;
+	}
+}
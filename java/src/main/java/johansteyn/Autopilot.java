@@ -0,0 +1,258 @@
+package johansteyn;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Suggests the next move by Monte Carlo search: for each candidate move, random games
+ * are played out from the current position on a fork-join pool until the time budget runs out,
+ * and the move with the best average outcome wins.
+ * A playout is worth the percentage of the level's area it captures, less CRASH_PENALTY if it crashes.
+ * The search runs on its own thread: the game hands over positions with submit()
+ * and picks up the latest suggestion with getMove(), neither of which waits for the search.
+ */
+public class Autopilot extends Thread {
+	private static final int[] MOVES = {
+		GameModel.NONE,
+		GameModel.UP,
+		GameModel.DOWN,
+		GameModel.LEFT,
+		GameModel.RIGHT
+	};
+	private static final double CRASH_PENALTY = 100;
+	private static final int TURN_ODDS = 8; // a playout turns once every this many ticks, on average
+	private ForkJoinPool pool;
+	private volatile long budgetNanos;
+	private AtomicReference latest = new AtomicReference();       // GameState waiting to be searched
+	private ConcurrentLinkedQueue spare = new ConcurrentLinkedQueue(); // GameStates free for reuse
+	private ThreadLocal buffers = new ThreadLocal();              // GameState for each pool thread to play out on
+	private volatile long suggestion = GameModel.NONE;            // tick << 3 | move
+	private volatile long rolloutsPerSecond;
+	private volatile Runnable listener;
+	private volatile boolean shutdown;
+
+	/**
+	 * Searches with one pool thread per processor, leaving one for the game itself.
+	 */
+	public Autopilot(int budgetMillis) {
+		this(Math.max(Runtime.getRuntime().availableProcessors() - 1, 1), budgetMillis);
+	}
+
+	public Autopilot(int parallelism, int budgetMillis) {
+		super("Autopilot");
+		setDaemon(true);
+		pool = new ForkJoinPool(parallelism);
+		setBudget(budgetMillis);
+	}
+
+	/**
+	 * Sets how long to search each position for.
+	 */
+	public void setBudget(int millis) {
+		budgetNanos = Math.max(millis, 1) * 1000000L;
+	}
+
+	/**
+	 * Sets what to run, on the autopilot thread, whenever a new suggestion is ready.
+	 */
+	public void setListener(Runnable listener) {
+		this.listener = listener;
+	}
+
+	public int getParallelism() {
+		return pool.getParallelism();
+	}
+
+	/**
+	 * Hands over the current position of the game, replacing any position not yet searched.
+	 * Only copies the position, leaving the autopilot thread to unpack its cells,
+	 * so it is cheap enough to call after every tick.
+	 */
+	public void submit(GameModel model) {
+		GameState state = (GameState) spare.poll();
+		if (state == null) {
+			state = new GameState();
+		}
+		state.copy(model);
+		GameState old = (GameState) latest.getAndSet(state);
+		if (old != null) {
+			spare.offer(old);
+		}
+		synchronized (this) {
+			notifyAll();
+		}
+	}
+
+	/**
+	 * The suggested move for the given tick, or GameModel.NONE when the search has not yet caught up with it.
+	 */
+	public int getMove(long tick) {
+		long s = suggestion;
+		if ((s >>> 3) != tick) {
+			return GameModel.NONE;
+		}
+		return (int) (s & 7);
+	}
+
+	/**
+	 * The number of playouts per second over the last search.
+	 */
+	public long getRolloutsPerSecond() {
+		return rolloutsPerSecond;
+	}
+
+	/**
+	 * Stops the autopilot thread once any search under way is done, and the pool along with it.
+	 */
+	public void shutdown() {
+		shutdown = true;
+		synchronized (this) {
+			notifyAll();
+		}
+	}
+
+	public void run() {
+		while (!shutdown) {
+			GameState state;
+			synchronized (this) {
+				while ((state = (GameState) latest.getAndSet(null)) == null && !shutdown) {
+					try {
+						wait();
+					} catch (InterruptedException ie) {
+					}
+				}
+			}
+			if (state == null) {
+				break;
+			}
+			state.unpack();
+			long tick = state.getTicks();
+			int move = search(state);
+			suggestion = tick << 3 | move;
+			spare.offer(state);
+			Runnable l = listener;
+			if (l != null) {
+				l.run();
+			}
+		}
+		pool.shutdown();
+	}
+
+	/**
+	 * Plays out random games from the given position for the time budget, on every pool thread,
+	 * and returns the move with the best average value.
+	 */
+	public int search(GameState root) {
+		long start = System.nanoTime();
+		long deadline = start + budgetNanos;
+		Playouts[] tasks = new Playouts[pool.getParallelism()];
+		for (int i = 0; i < tasks.length; i++) {
+			tasks[i] = new Playouts(root, deadline, i);
+		}
+		pool.invoke(new RecursiveAction() {
+			protected void compute() {
+				invokeAll(tasks);
+			}
+		});
+		double[] totals = new double[MOVES.length];
+		long[] counts = new long[MOVES.length];
+		long rollouts = 0;
+		for (int i = 0; i < tasks.length; i++) {
+			for (int m = 0; m < MOVES.length; m++) {
+				totals[m] += tasks[i].totals[m];
+				counts[m] += tasks[i].counts[m];
+				rollouts += tasks[i].counts[m];
+			}
+		}
+		long elapsed = Math.max(System.nanoTime() - start, 1);
+		rolloutsPerSecond = rollouts * 1000000000L / elapsed;
+		int best = GameModel.NONE;
+		double bestValue = -Double.MAX_VALUE;
+		for (int m = 0; m < MOVES.length; m++) {
+			if (counts[m] == 0) {
+				continue;
+			}
+			double value = totals[m] / counts[m];
+			if (value > bestValue) {
+				bestValue = value;
+				best = MOVES[m];
+			}
+		}
+		return best;
+	}
+
+	/**
+	 * Plays out the candidate moves in turn, starting with a different one on each task, until the deadline.
+	 */
+	class Playouts extends RecursiveAction {
+		private GameState root;
+		private long deadline;
+		private int first;
+		double[] totals = new double[MOVES.length];
+		long[] counts = new long[MOVES.length];
+
+		Playouts(GameState root, long deadline, int first) {
+			this.root = root;
+			this.deadline = deadline;
+			this.first = first;
+		}
+
+		protected void compute() {
+			// The root is shared between the tasks, which only ever copy it
+			GameState work = (GameState) buffers.get();
+			if (work == null) {
+				work = new GameState();
+				buffers.set(work);
+			}
+			ThreadLocalRandom random = ThreadLocalRandom.current();
+			int horizon = root.getRows() + root.getCols();
+			for (int k = first; System.nanoTime() < deadline; k++) {
+				int m = k % MOVES.length;
+				root.copyInto(work);
+				totals[m] += playout(work, MOVES[m], horizon, random);
+				counts[m]++;
+			}
+		}
+	}
+
+	/**
+	 * Plays the given move and then random ones for up to horizon ticks, and returns the value of the outcome.
+	 */
+	private static double playout(GameState state, int move, int horizon, ThreadLocalRandom random) {
+		state.step(move);
+		for (int t = 1; t < horizon && !state.isCrashed(); t++) {
+			int input = GameModel.NONE;
+			if (random.nextInt(TURN_ODDS) == 0) {
+				input = GameModel.UP + random.nextInt(4);
+				if (input == reverse(state.getPlayerDir()) && !state.isStopped()) {
+					// Straight back onto the trail, or straight back out
+					input = GameModel.NONE;
+				}
+			}
+			state.step(input);
+		}
+		int target = Math.max(state.getTarget(), 1);
+		double value = state.getCaptured() * 100.0 / target;
+		if (state.isCrashed()) {
+			value -= CRASH_PENALTY;
+		}
+		return value;
+	}
+
+	private static int reverse(int dir) {
+		switch (dir) {
+		case GameModel.UP:
+			return GameModel.DOWN;
+		case GameModel.DOWN:
+			return GameModel.UP;
+		case GameModel.LEFT:
+			return GameModel.RIGHT;
+		case GameModel.RIGHT:
+			return GameModel.LEFT;
+		}
+		return GameModel.NONE;
+	}
+}
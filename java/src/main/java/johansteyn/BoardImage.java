@@ -0,0 +1,208 @@
+package johansteyn;
+
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.util.Arrays;
+
+/**
+ * An offscreen image of the board cells (without the player and enemies).
+ * It is kept up to date from the cells the model marks as dirty,
+ * so that only the changed cells are redrawn.
+ * A board with more cells than the game has pixels is shrunk to fit, with each pixel
+ * standing for a block of cells, so the image is never larger than the game.
+ * An image that sits out a tick, because it is being drawn from, remembers the cells
+ * that changed in the meantime and redraws them along with those of its next update.
+ * It isn't synchronized: it is only ever changed by the thread that runs the model,
+ * while nothing else is drawing from it.
+ */
+class BoardImage {
+	private Color[] colors;
+	private Color spareBorder;
+	private BufferedImage image;
+	private int rows;
+	private int cols;
+	private int cellWidth;
+	private int cellHeight;
+	private int colsPerPixel; // cells to a block, drawn as one cell
+	private int rowsPerPixel;
+	private int blockCols;
+	private int blockRows;
+	private int[] pending = new int[64]; // cells changed in ticks this image sat out
+	private int pendingCount;
+	private boolean pendingAll;
+
+	/**
+	 * The colors are indexed by cell state.
+	 */
+	BoardImage(Color[] colors, Color spareBorder) {
+		this.colors = colors;
+		this.spareBorder = spareBorder;
+	}
+
+	/**
+	 * Recreates and redraws the whole image if the board, cell size or block size changed.
+	 * Blocks of several cells are only for boards larger than the game, with cells of a single pixel.
+	 */
+	void resize(GameModel model, int cellWidth, int cellHeight, int colsPerPixel, int rowsPerPixel) {
+		if (image != null &&
+			rows == model.getRows() &&
+			cols == model.getCols() &&
+			this.cellWidth == cellWidth &&
+			this.cellHeight == cellHeight &&
+			this.colsPerPixel == colsPerPixel &&
+			this.rowsPerPixel == rowsPerPixel) {
+			return;
+		}
+		rows = model.getRows();
+		cols = model.getCols();
+		this.cellWidth = cellWidth;
+		this.cellHeight = cellHeight;
+		this.colsPerPixel = colsPerPixel;
+		this.rowsPerPixel = rowsPerPixel;
+		blockCols = (cols + colsPerPixel - 1) / colsPerPixel;
+		blockRows = (rows + rowsPerPixel - 1) / rowsPerPixel;
+		image = new BufferedImage(blockCols * cellWidth, blockRows * cellHeight, BufferedImage.TYPE_INT_RGB);
+		Graphics g = image.getGraphics();
+		drawAll(g, model);
+		g.dispose();
+		pendingCount = 0;
+		pendingAll = false;
+	}
+
+	/**
+	 * Remembers the cells the model marked as dirty, to redraw them at the next update().
+	 */
+	void remember(GameModel model) {
+		if (pendingAll) {
+			return;
+		}
+		int count = model.getDirtyCount();
+		// Past a quarter of the board, redrawing it all is as quick
+		if (model.isAllDirty() || pendingCount + count > blockRows * blockCols / 4) {
+			pendingAll = true;
+			pendingCount = 0;
+			return;
+		}
+		if (pendingCount + count > pending.length) {
+			pending = Arrays.copyOf(pending, Math.max(2 * pending.length, pendingCount + count));
+		}
+		for (int i = 0; i < count; i++) {
+			pending[pendingCount++] = model.getDirty(i);
+		}
+	}
+
+	/**
+	 * Redraws the cells the model marked as dirty and clears them.
+	 */
+	void update(GameModel model) {
+		if (image == null) {
+			return;
+		}
+		Graphics ig = image.getGraphics();
+		if (model.isAllDirty() || pendingAll) {
+			drawAll(ig, model);
+		} else {
+			int last = -1;
+			for (int i = 0; i < pendingCount; i++) {
+				last = updateCell(ig, model, pending[i], last);
+			}
+			for (int i = 0; i < model.getDirtyCount(); i++) {
+				last = updateCell(ig, model, model.getDirty(i), last);
+			}
+		}
+		ig.dispose();
+		pendingCount = 0;
+		pendingAll = false;
+		model.clearDirty();
+	}
+
+	/**
+	 * Redraws the block holding the given cell, unless it is the block last redrawn,
+	 * and returns the block's index.
+	 */
+	private int updateCell(Graphics ig, GameModel model, int index, int last) {
+		int blockRow = index / cols / rowsPerPixel;
+		int blockCol = index % cols / colsPerPixel;
+		int block = blockRow * blockCols + blockCol;
+		if (block != last) {
+			drawCell(ig, blockRow, blockCol, getBlock(model, blockRow, blockCol));
+		}
+		return block;
+	}
+
+	/**
+	 * The cell state to show for the given block: a trail cell if there is one, since the player
+	 * crashes into it, or else an inside cell, or else the state of its first cell.
+	 */
+	private int getBlock(GameModel model, int blockRow, int blockCol) {
+		int row = blockRow * rowsPerPixel;
+		int col = blockCol * colsPerPixel;
+		int cell = model.getCell(row, col);
+		if (rowsPerPixel == 1 && colsPerPixel == 1) {
+			return cell;
+		}
+		int endRow = Math.min(row + rowsPerPixel, rows);
+		int endCol = Math.min(col + colsPerPixel, cols);
+		for (int r = row; r < endRow; r++) {
+			for (int c = col; c < endCol; c++) {
+				int other = model.getCell(r, c);
+				if (other == GameModel.ACTIVE) {
+					return other;
+				}
+				if (other == GameModel.INSIDE) {
+					cell = other;
+				}
+			}
+		}
+		return cell;
+	}
+
+	/**
+	 * The width of the image, which is as far as the board reaches.
+	 */
+	int getWidth() {
+		return image == null ? 0 : image.getWidth();
+	}
+
+	int getHeight() {
+		return image == null ? 0 : image.getHeight();
+	}
+
+	void draw(Graphics g) {
+		if (image != null) {
+			g.drawImage(image, 0, 0, null);
+		}
+	}
+
+	private void drawAll(Graphics g, GameModel model) {
+		// Fill runs of equal blocks in a row with a single rectangle
+		for (int row = 0; row < blockRows; row++) {
+			int col = 0;
+			while (col < blockCols) {
+				int cell = getBlock(model, row, col);
+				if (cell == GameModel.SPARE) {
+					drawCell(g, row, col, cell);
+					col++;
+					continue;
+				}
+				int end = col + 1;
+				while (end < blockCols && getBlock(model, row, end) == cell) {
+					end++;
+				}
+				g.setColor(colors[cell]);
+				g.fillRect(col * cellWidth, row * cellHeight, (end - col) * cellWidth, cellHeight);
+				col = end;
+			}
+		}
+	}
+
+	private void drawCell(Graphics g, int row, int col, int cell) {
+		g.setColor(colors[cell]);
+		g.fillRect(col * cellWidth, row * cellHeight, cellWidth, cellHeight);
+		// A block's border would cover it
+		if (cell == GameModel.SPARE && rowsPerPixel == 1 && colsPerPixel == 1) {
+			g.setColor(spareBorder);
+			g.drawRect(col * cellWidth, row * cellHeight, cellWidth - 1, cellHeight - 1);
+		}
+	}
+}
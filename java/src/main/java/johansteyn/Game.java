@@ -2,75 +2,158 @@ package johansteyn;
 
 import java.awt.*;
 import java.awt.event.*;
+import java.awt.image.BufferStrategy;
 import java.io.*;
-import java.net.URL;
 import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
 
 
-public class Game extends Container implements KeyListener, FocusListener {
-	private static final int OUTSIDE = 0;
-	private static final int INSIDE = 1;
-	private static final int ACTIVE = 2;
-	private static final int FIXED = 3;
-	private static final int SPARE = 4;
-	private static final int BLANK = 5;
+public class Game extends Canvas implements KeyListener, FocusListener {
 	static final Color COLOR_OUTSIDE = new Color(0, 160, 0);
 	private static final Color COLOR_INSIDE = Color.black;
 	private static final Color COLOR_ACTIVE = new Color(200, 200, 0);
 	private static final Color COLOR_TEXT = new Color(160, 0, 0);
 	private static final Color COLOR_SPARE = Color.gray;
 	private static final Color COLOR_BLANK = Color.white;
-	private static final int DEFAULT_DELAY = 120;
+	private static final Color COLOR_PLAYER = Color.yellow;
+	private static final Color COLOR_ENEMY = new Color(160, 0, 0);
+	private static final Color COLOR_METRICS = Color.black;
+	private static final Font METRICS_FONT = new Font("Monospaced", Font.PLAIN, 12);
+	private static final Color[] cellColors = {
+		COLOR_OUTSIDE, // OUTSIDE
+		COLOR_INSIDE,  // INSIDE
+		COLOR_ACTIVE,  // ACTIVE
+		COLOR_INSIDE,  // FIXED
+		COLOR_SPARE,   // SPARE
+		COLOR_BLANK    // BLANK
+	};
+	private static final int DEFAULT_DELAY = GameModel.DEFAULT_TICK_MILLIS;
 	private static final int DELAY_INCREMENT = 10;
-	private static final int DEFAULT_LIVES = 3;
+	private static final int MAX_CATCH_UP = 5; // most ticks run back to back when behind schedule
+	private static final int AUTOPILOT_OFF = 0;
+	private static final int AUTOPILOT_HINT = 1; // show the suggested move
+	private static final int AUTOPILOT_PLAY = 2; // play the suggested move unless the user moves
+	// Flags in the state word
+	private static final int PAUSED = 1;         // game paused by user
+	private static final int ABORTED = 2;        // game aborted by user
+	private static final int HALTED = 4;         // game halted by system
+	private static final int SUSPENDED = 8;      // halted by focus loss or help/highscore screens
+	private static final int GAMEOVER = 16;
+	private static final int HIGH_SCORES = 32;   // showing the high scores
+	private static final int HELP = 64;          // showing the help
+	private static final int NEW_GAME = 128;     // a new game is on its way to the Animator
+	private static final int WARMED = 256;       // a game has been asked for
+	private static final int WINNER = 512;       // showing the winner animation
+	private static final int METRICS = 1 << 12;  // showing the metrics over the board
+	// What the game is doing between ticks, advanced by the Animator, also in the state word
+	private static final int PHASE_PLAY = 0;
+	private static final int PHASE_CRASH = 1 << 10;  // waiting to play on after a crash
+	private static final int PHASE_LEVEL = 2 << 10;  // waiting to start the next level
+	private static final int PHASE_WINNER = 3 << 10; // celebrating a new best score
+	private static final int PHASE = 3 << 10;
+	private static final int STOPPED = PAUSED | ABORTED | HALTED | GAMEOVER | HIGH_SCORES | HELP | NEW_GAME | PHASE;
+	private static final int CRASH_MILLIS = 3000;
+	private static final int LEVEL_MILLIS = 3000;
+	private static final int WINNER_WAIT_MILLIS = 1000;
+	private static final int WINNER_MILLIS = 3000;
+	private static final int WINNER_STEP_MILLIS = 10;
+	// Key presses queued for the Animator, besides the moves in GameModel
+	private static final int INPUT_FASTER = 16;
+	private static final int INPUT_SLOWER = 17;
+	private static final int INPUT_DEFAULT_SPEED = 18;
+	private static final int INPUT_NEW_GAME = 32; // plus the level, or 0 for the current level
 	private static final Color[] winnerColors = {
 		Color.red,
 		Color.black
 	};
+	private GameModel model;  // only used by the Animator, once started
 	private int width;
 	private int height;
-	private int rows = 30;
-	private int cols = 30;
-	private int[][] cells = new int[rows][cols];
-	private int cellWidth;
-	private int cellHeight;
-	private int target;
-	private int level = 1;
-	private int total;
-	private int delay = DEFAULT_DELAY;
-	private int lives = DEFAULT_LIVES;
+	private int rows;
+	private int cols;
+	private int level = 1;    // for the next new game, or 0 to play the current level again
+	private boolean starting; // a new game was taken from inputs, for the Animator to start
+	private volatile int delay = DEFAULT_DELAY;
+	private InputQueue inputs = new InputQueue(256);
+	// Moves taken from inputs and waiting for their tick, for the Animator
+	private int[] moves = new int[16];
+	private long[] moveWhens = new long[16];
+	private int moveCount;
+	private Histogram inputLatency = new Histogram(1000, 1); // milliseconds from key press to tick
 	private boolean initialized;
-	private boolean stopped; // player stopped by user
-	private boolean paused;  // game paused by user
-	private boolean aborted; // game aborted by user
-	private boolean halted;  // game halted by system
-	private boolean crashed; 
-	private boolean gameover;
-	private boolean showHighScores;
-	private boolean showHelpStrings;
+	// The flags and phase, read and changed as one word
+	private AtomicInteger state = new AtomicInteger();
+	private AtomicReference latest = new AtomicReference();           // Snapshot not yet drawn
+	private ConcurrentLinkedQueue spare = new ConcurrentLinkedQueue(); // Snapshots free for reuse
+	private ArrayList snapshots = new ArrayList(); // every Snapshot made, for the Animator
+	private Snapshot published;                    // the last one published, for the Animator
+	private Snapshot shown;                        // the one being drawn, for whoever draws frames
+	private volatile int size;                     // width << 16 | height to draw the board at
+	private volatile String score;                 // level and score, as last published
 	private Animator animator = new Animator();
-	private Player player;
-	private ArrayList enemies;
-	private ArrayList highScores = new ArrayList();
+	private GameMetrics metrics = new GameMetrics();
+	private GameEvents events = GameEvents.get();
+	private HighScores highScores;
 	private ArrayList helpStrings = new ArrayList();
-	private Image pausedImage;
-	private Image abortedImage;
-	private Image gameoverImage;
-	private boolean newGame;
-	private boolean winner;
-	private int percentageArea;
-	private int percentageTime;
-	private long startTime;
-	private long pausedTime;
-	private long haltedTime;
-	private boolean warmed;
+	private TextScreen helpScreen;
+	private TextScreen highScoreScreen;
+	private Overlay pausedOverlay;
+	private Overlay abortedOverlay;
+	private Overlay gameoverOverlay;
+	private long phaseStart;  // when the phase starts, in nanoseconds
+	private long phaseEnd;
+	private volatile int winnerStep;
+	private Font winnerFont;    // for the size in winnerSize
+	private Dimension winnerSize = new Dimension();
+	private int winnerWidth;    // of the text in winnerFont
+	private boolean active;   // active rendering through a BufferStrategy
+	private int fps;          // maximum frames per second when rendering actively, 0 for no limit
+	private Renderer renderer;
+	private Object frameLock = new Object();
+	private long frameRequests;
+	private int[] oldRows = new int[16]; // piece positions before the last tick, player first
+	private int[] oldCols = new int[16];
+	private int moved;                    // number of valid old positions
+	private long tickNanos;               // when the last tick ran
+	private Recording recording;
+	private File recordingFile;
+	private long createdNanos = System.nanoTime();
+	private long firstFrameNanos;
+	private boolean timed;
+	private Autopilot autopilot;
+	private volatile int autopilotMode = AUTOPILOT_OFF;
+	private long statusNanos;                 // when the status was last set
+	private volatile boolean shutdown;        // the threads are to stop
 
 	public Game() {
+		this(GameModel.DEFAULT_ROWS, GameModel.DEFAULT_COLS);
+	}
+
+	public Game(int rows, int cols) {
+		this(rows, cols, false, 0);
+	}
+
+	/**
+	 * With active rendering, frames are drawn by a dedicated render thread into a page-flipping
+	 * BufferStrategy instead of by paint() and the Animator thread, at most fps times a second.
+	 */
+	public Game(int rows, int cols, boolean active, int fps) {
+		this.active = active;
+		this.fps = fps;
+		model = new GameModel(rows, cols);
+		model.setEvents(events);
+		score = "Level " + model.getLevel() + " Score " + model.getScore();
+		this.rows = rows;
+		this.cols = cols;
 		// start early to "warm up"
 		animator.start();
-		pausedImage = loadImage(this, "images/paused.gif");
-		abortedImage = loadImage(this, "images/aborted.gif");
-		gameoverImage = loadImage(this, "images/gameover.gif");
+		// Loaded in the background, so they don't hold up the first frame
+		pausedOverlay = new Overlay(this, "images/paused.gif", "Paused");
+		abortedOverlay = new Overlay(this, "images/aborted.gif", "Aborted");
+		gameoverOverlay = new Overlay(this, "images/gameover.gif", "Game Over");
 		addKeyListener(this);
 		addFocusListener(this);
 		addMouseListener(new MouseAdapter() {
@@ -82,249 +165,566 @@ public class Game extends Container implements KeyListener, FocusListener {
 		helpStrings.add("arrows      Move");
 		helpStrings.add("i/j/k/l     Move");
 		helpStrings.add("space       Stop");
+		helpStrings.add("o      Autopilot");
 		helpStrings.add("p          Pause");
 		helpStrings.add("a/ESC      Abort");
 		helpStrings.add("s/-       Slower");
 		helpStrings.add("d/=      Default");
 		helpStrings.add("f/+       Faster");
 		helpStrings.add("z     Highscores");
+		helpStrings.add("m        Metrics");
 		helpStrings.add("h           Help");
-		loadHighScores();
+		helpScreen = new TextScreen("Xonix", helpStrings, helpStrings.size(), COLOR_OUTSIDE, COLOR_TEXT, Color.black);
+		highScoreScreen = new TextScreen("High Scores", new ArrayList(), HighScores.MAX, COLOR_OUTSIDE, COLOR_TEXT, Color.black);
+		Leaderboard leaderboard = null;
+		try {
+			File file = Leaderboard.getDefaultFile();
+			file.getParentFile().mkdirs();
+			leaderboard = Leaderboard.open(file);
+		} catch (IOException ioe) {
+			ioe.printStackTrace();
+		}
+		highScores = new HighScores(leaderboard, new File("highscores"));
+		highScores.setEvents(events);
+		// Starting the MBean server would hold up the first frame
+		Thread registrar = new Thread("GameMetrics") {
+			public void run() {
+				metrics.register();
+			}
+		};
+		registrar.setDaemon(true);
+		registrar.start();
+		updateHighScoreStrings();
+	}
+
+	/**
+	 * Records every game, saving the last one to the given file when it ends.
+	 */
+	public void record(File file) {
+		recordingFile = file;
+		recording = new Recording();
+		model.setRecording(recording);
+	}
+
+	public void addNotify() {
+		super.addNotify();
+		if (active) {
+			setIgnoreRepaint(true);
+			createBufferStrategy(2);
+			if (renderer == null) {
+				renderer = new Renderer();
+				renderer.start();
+			}
+		}
+	}
+
+	public void update(Graphics g) {
+		// Every frame covers the whole component, so don't clear it first
+		paint(g);
 	}
 
 	public void paint(Graphics g) {
 		requestFocus();
-		if (winner) {
+		if (!initialized) {
+			setScore();
+			change(0, HALTED | HELP);
+			initialized = true;
+		}
+		if (active) {
+			requestFrame();
 			return;
 		}
+		Object repaint = events.beginRepaint();
+		long start = System.nanoTime();
+		drawFrame(g);
+		metrics.recordRender(System.nanoTime() - start);
+		if (repaint != null) {
+			events.endRepaint(repaint, getWidth(), getHeight());
+		}
+		drawn();
+	}
+
+	/**
+	 * Draws the latest snapshot, without touching the model. Until the Animator
+	 * has made one at the current size, the last one is scaled to fit.
+	 */
+	private void drawFrame(Graphics g) {
 		Dimension d = getSize();
 		width = d.width;
 		height = d.height;
-		cellWidth = width / cols;
-		cellHeight = height / (rows + 1);
-		if (!initialized) {
-			play(false);
-			halted = true;
-			showHelpStrings = true;
-			initialized = true;
+		size = width << 16 | height;
+		int state = this.state.get();
+		if ((state & WINNER) != 0) {
+			drawWinner(g, width, height);
+			return;
 		}
-		if (showHelpStrings) {
-			drawStrings(g, "Xonix", helpStrings);
+		if ((state & HELP) != 0) {
+			helpScreen.draw(g, this, width, height);
 			return;
 		}
-		if (showHighScores) {
-			loadHighScores();
-			drawStrings(g, "High Scores", highScores, 10);
+		if ((state & HIGH_SCORES) != 0) {
+			highScoreScreen.draw(g, this, width, height);
 			return;
 		}
-		for (int row = 0; row < rows; row++) {
-			for (int col = 0; col < cols; col++) {
-				if (cells[row][col] == OUTSIDE) {
-					g.setColor(COLOR_OUTSIDE);
-				}
-				if (cells[row][col] == INSIDE) {
-					g.setColor(COLOR_INSIDE);
-				}
-				if (cells[row][col] == ACTIVE) {
-					g.setColor(COLOR_ACTIVE);
-				}
-				if (cells[row][col] == SPARE) {
-					g.setColor(COLOR_SPARE);
-				}
-				if (cells[row][col] == BLANK) {
-					g.setColor(COLOR_BLANK);
-				}
-				g.fillRect(col * cellWidth, row * cellHeight, cellWidth, cellHeight);
-				if (cells[row][col] == SPARE) {
-					g.setColor(COLOR_BLANK);
-					g.drawRect(col * cellWidth, row * cellHeight, cellWidth, cellHeight);
-				}
-			}
+		Snapshot s = take();
+		if (s == null) {
+			g.clearRect(0, 0, width, height);
+			return;
+		}
+		Graphics sg = g;
+		if (s.width != width || s.height != height) {
+			sg = g.create();
+			((Graphics2D) sg).scale(width / (double) s.width, height / (double) s.height);
 		}
-		player.draw(g);
-		for (int i = 0; i < enemies.size(); i++) {
-			Enemy enemy = (Enemy) enemies.get(i);
-			enemy.draw(g);
+		sg.clearRect(s.board.getWidth(), 0, s.width, s.height);
+		s.board.draw(sg);
+		drawPieces(sg, s, active && (state & STOPPED) == 0 ? progress(s) : 1.0f);
+		drawPercentageTime(sg, s);
+		if (sg != g) {
+			sg.dispose();
 		}
-		if (paused || aborted || gameover) {
-			Image image = pausedImage;
-			if (aborted) {
-				image = abortedImage;
+		if ((state & (PAUSED | ABORTED | GAMEOVER)) != 0) {
+			Overlay overlay = pausedOverlay;
+			if ((state & ABORTED) != 0) {
+				overlay = abortedOverlay;
 			}
-			if (gameover) {
-				image = gameoverImage;
+			if ((state & GAMEOVER) != 0) {
+				overlay = gameoverOverlay;
 			}
-			((Graphics2D) g).setComposite(AlphaComposite.getInstance(AlphaComposite.SRC_OVER, 0.5f));
-			g.drawImage(image, width / 10, 4 * height / 9, 8 * width / 10, height / 9, this);
+			overlay.draw(g, width / 10, 4 * height / 9, 8 * width / 10, height / 9);
+		}
+		if ((state & METRICS) != 0) {
+			drawMetrics(g);
 		}
-		drawPercentageTime();
 	}
 
-	private void drawStrings(Graphics g, String heading, ArrayList strings) {
-		drawStrings(g, heading, strings, strings.size());
+	/**
+	 * Draws the metrics in the top left corner, on a solid background so they can be read over anything
+	 * and drawn again after each tick.
+	 */
+	private void drawMetrics(Graphics g) {
+		String[] lines = metrics.getLines();
+		g.setFont(METRICS_FONT);
+		FontMetrics fm = g.getFontMetrics();
+		int w = 0;
+		for (int i = 0; i < lines.length; i++) {
+			w = Math.max(w, fm.stringWidth(lines[i]));
+		}
+		int lineHeight = fm.getHeight();
+		g.setColor(COLOR_METRICS);
+		g.fillRect(0, 0, w + 8, lines.length * lineHeight + 8);
+		g.setColor(Color.white);
+		for (int i = 0; i < lines.length; i++) {
+			g.drawString(lines[i], 4, 4 + i * lineHeight + fm.getAscent());
+		}
 	}
 
-	private void drawStrings(Graphics g, String heading, ArrayList strings, int number) {
-		g.setColor(COLOR_OUTSIDE);
-		g.fillRect(0, 0, width, height);
-		String longest = "";
-		for (int i = 0; i < strings.size(); i++) {
-			String s = (String) strings.get(i);
-			if (s.length() > longest.length()) {
-				longest = s;
+	/**
+	 * The latest snapshot, for whoever draws frames, who keeps it until there is a newer one.
+	 */
+	private Snapshot take() {
+		Snapshot s = (Snapshot) latest.getAndSet(null);
+		if (s != null) {
+			if (shown != null) {
+				spare.offer(shown);
 			}
+			shown = s;
 		}
-		int fontSize = height / (number + 2) - 2;
-		g.setColor(COLOR_TEXT);
-		int headingFontSize = 2 * fontSize;
-		int fw = 0;
-		while (true) {
-			Font font = new Font("Monospaced", Font.BOLD, headingFontSize);
-			g.setFont(font);
-			FontMetrics fm = g.getFontMetrics(font);
-			fw = fm.stringWidth(heading);
-			if (fw < width) {
-				break;
+		return shown;
+	}
+
+	/**
+	 * Makes a snapshot of the model and publishes it for drawing, on the Animator thread.
+	 * The board image is brought up to date by redrawing the changed cells.
+	 */
+	private Snapshot publish() {
+		Snapshot s = (Snapshot) spare.poll();
+		if (s == null) {
+			s = new Snapshot(cellColors, COLOR_BLANK);
+			snapshots.add(s);
+		}
+		// The others miss this update, so need to catch up with it later
+		for (int i = 0; i < snapshots.size(); i++) {
+			Snapshot other = (Snapshot) snapshots.get(i);
+			if (other != s) {
+				other.board.remember(model);
 			}
-			headingFontSize -= 4;
 		}
-		g.drawString(heading, (width - fw) / 2, headingFontSize);
+		int size = this.size;
+		s.width = Math.max(size >>> 16, 1);
+		s.height = Math.max(size & 0xffff, 1);
+		// A row is left for the percentage and time, and a board larger than that is shrunk to fit
+		s.cellWidth = Math.max(s.width / cols, 1);
+		s.cellHeight = Math.max(s.height / (rows + 1), 1);
+		s.colsPerPixel = (cols + s.width - 1) / s.width;
+		int boardHeight = Math.max(s.height - 1, 1);
+		s.rowsPerPixel = (rows + boardHeight - 1) / boardHeight;
+		s.board.resize(model, s.cellWidth, s.cellHeight, s.colsPerPixel, s.rowsPerPixel);
+		s.board.update(model);
+		s.load(model, tickNanos, oldRows, oldCols, moved);
+		Snapshot old = (Snapshot) latest.getAndSet(s);
+		if (old != null) {
+			spare.offer(old);
+		}
+		published = s;
+		return s;
+	}
+
+	private void requestFrame() {
+		synchronized (frameLock) {
+			frameRequests++;
+			frameLock.notifyAll();
+		}
+	}
+
+	/**
+	 * Draws the player and enemies, the given fraction of the way from
+	 * their positions before the last tick to their current positions.
+	 */
+	private void drawPieces(Graphics g, Snapshot s, float fraction) {
+		for (int i = 0; i < s.count; i++) {
+			drawPiece(g, s, i, fraction, i == 0 ? COLOR_PLAYER : COLOR_ENEMY);
+		}
+		if (autopilotMode == AUTOPILOT_HINT) {
+			drawHint(g, s);
+		}
+	}
+
+	/**
+	 * Draws the hint as soon as the autopilot has one, rather than waiting for the next tick.
+	 */
+	private void showHint() {
+		if (autopilotMode != AUTOPILOT_HINT || !running()) {
+			return;
+		}
+		if (active) {
+			requestFrame();
+		} else {
+			repaint();
+		}
+	}
+
+	/**
+	 * Outlines the cell the autopilot suggests moving to next.
+	 */
+	private void drawHint(Graphics g, Snapshot s) {
+		int row = s.pieceRows[0];
+		int col = s.pieceCols[0];
+		int move = autopilot.getMove(s.ticks);
+		if (move == GameModel.UP && row > 0) {
+			row--;
+		} else if (move == GameModel.DOWN && row < rows - 1) {
+			row++;
+		} else if (move == GameModel.LEFT && col > 0) {
+			col--;
+		} else if (move == GameModel.RIGHT && col < cols - 1) {
+			col++;
+		} else {
+			return;
+		}
+		g.setColor(COLOR_PLAYER);
+		g.drawRect(s.x(col), s.y(row), s.cellWidth - 1, s.cellHeight - 1);
+	}
+
+	private void drawPiece(Graphics g, Snapshot s, int i, float fraction, Color color) {
+		int cellWidth = s.cellWidth;
+		int cellHeight = s.cellHeight;
+		int x = s.x(s.pieceCols[i]);
+		int y = s.y(s.pieceRows[i]);
+		if (fraction < 1.0f && i < s.moved) {
+			int oldX = s.x(s.oldCols[i]);
+			int oldY = s.y(s.oldRows[i]);
+			x = oldX + Math.round((x - oldX) * fraction);
+			y = oldY + Math.round((y - oldY) * fraction);
+		}
+		g.setColor(color);
+		g.fillRect(x, y, cellWidth, cellHeight);
 		g.setColor(Color.black);
-		Font font = new Font("Monospaced", Font.PLAIN, fontSize);
-		g.setFont(font);
-		FontMetrics fm = g.getFontMetrics(font);
-		fw = fm.stringWidth(longest);
-		for (int i = 0; i < strings.size() && i < number; i++) {
-			String s = (String) strings.get(i);
-			g.drawString(s, (width - fw) / 2, (i + 3) * fontSize);
-		}
-	}
-
-	private void play(boolean preserve) {
-		if (preserve) {
-			for (int row = 0; row < rows; row++) {
-				for (int col = 0; col < cols; col++) {
-					if (cells[row][col] == ACTIVE) {
-						cells[row][col] = INSIDE;
-					}
-				}
+		g.drawRect(x + 1, y + 1, cellWidth - 2, cellHeight - 2);
+	}
+
+	/**
+	 * How far along the current tick period we are, from 0 to 1.
+	 */
+	private float progress(Snapshot s) {
+		float fraction = (System.nanoTime() - s.tickNanos) / (delay * 1000000.0f);
+		return fraction > 1.0f ? 1.0f : fraction;
+	}
+
+	private boolean running() {
+		return (state.get() & STOPPED) == 0;
+	}
+
+	private boolean is(int flags) {
+		return (state.get() & flags) != 0;
+	}
+
+	/**
+	 * Clears the flags in clear and sets those in set, all at once.
+	 */
+	private void change(int clear, int set) {
+		change(0, 0, clear, set);
+	}
+
+	/**
+	 * Clears the flags in clear and sets those in set, all at once, but only if the flags in mask
+	 * are as in expect. Returns whether they were.
+	 */
+	private boolean change(int mask, int expect, int clear, int set) {
+		while (true) {
+			int old = state.get();
+			if ((old & mask) != expect) {
+				return false;
+			}
+			if (state.compareAndSet(old, old & ~clear | set)) {
+				return true;
 			}
+		}
+	}
+
+	private int tick() {
+		int count = model.getEnemyCount();
+		if (oldRows.length < count + 1) {
+			oldRows = new int[2 * (count + 1)];
+			oldCols = new int[2 * (count + 1)];
+		}
+		oldRows[0] = model.getPlayerRow();
+		oldCols[0] = model.getPlayerCol();
+		for (int i = 0; i < count; i++) {
+			oldRows[i + 1] = model.getEnemyRow(i);
+			oldCols[i + 1] = model.getEnemyCol(i);
+		}
+		drainInput();
+		int dir = nextMove();
+		model.setTickMillis(delay);
+		if (autopilotMode == AUTOPILOT_PLAY && dir == GameModel.NONE) {
+			dir = autopilot.getMove(model.getTicks());
+		}
+		int event = model.step(dir);
+		metrics.recordEnemies(model.getEnemyCount());
+		if (event == GameModel.CAPTURE || event == GameModel.LEVEL) {
+			metrics.recordCapture(model.getCaptureNanos());
+		}
+		tickNanos = System.nanoTime();
+		moved = count + 1;
+		// Drawn by whoever draws frames, never here
+		publish();
+		if (active) {
+			requestFrame();
 		} else {
-			target = 0;
-			for (int row = 0; row < rows; row++) {
-				for (int col = 0; col < cols; col++) {
-					if (row < rows / 10 || 
-						row > 9 * rows / 10 ||
-						row < 3 ||
-						row >= rows - 3 ||
-						col < cols / 10 ||
-						col > 9 * cols / 10 ||
-						col < 3 ||
-						col >= cols - 3) {
-						cells[row][col] = OUTSIDE;
-					} else {
-						cells[row][col] = INSIDE;
-						target++;
-					}
+			repaint();
+		}
+		if (event != GameModel.TICK) {
+			updateScore();
+		} else if (autopilotMode != AUTOPILOT_OFF && tickNanos - statusNanos > 1000000000L) {
+			statusNanos = tickNanos;
+			setScore();
+		}
+		if (event == GameModel.LEVEL) {
+			setPhase(PHASE_LEVEL, 0, LEVEL_MILLIS);
+		}
+		if (event == GameModel.CRASH) {
+			setPhase(PHASE_CRASH, 0, CRASH_MILLIS);
+		}
+		if (event == GameModel.GAMEOVER) {
+			gameover();
+		}
+		submit();
+		return event;
+	}
+
+	/**
+	 * Takes the key presses queued since last time, on the Animator thread. Speed changes and
+	 * new games take effect right away, while moves wait to be played one a tick, in order.
+	 */
+	private void drainInput() {
+		while (inputs.take()) {
+			int event = inputs.getEvent();
+			if (event >= INPUT_NEW_GAME) {
+				level = event - INPUT_NEW_GAME;
+				starting = true;
+				moveCount = 0;
+			} else if (event == INPUT_FASTER) {
+				delay = Math.max(delay - DELAY_INCREMENT, 1);
+			} else if (event == INPUT_SLOWER) {
+				delay = Math.min(delay + DELAY_INCREMENT, 201);
+			} else if (event == INPUT_DEFAULT_SPEED) {
+				delay = DEFAULT_DELAY;
+			} else {
+				if (!running()) {
+					// Only the last move made while the game is stopped counts
+					moveCount = 0;
 				}
-			}
-			int col = cols / 2 - DEFAULT_LIVES / 2;
-			for (int c = 0; c < DEFAULT_LIVES; c++) {
-				if (c < lives) {
-					cells[0][col + c] = SPARE;
-				} else {
-					cells[0][col + c] = BLANK;
+				if (moveCount > 0 && moves[moveCount - 1] == event) {
+					// The same move again changes nothing
+					continue;
 				}
-			}
-		}
-		player = new Player();
-		ArrayList newEnemies = new ArrayList();
-		if (preserve) {
-			for (int i = 0; i < enemies.size(); i++) {
-				Enemy enemy = (Enemy) enemies.get(i);
-				if (enemy.inside) {
-					newEnemies.add(enemy);
+				if (moveCount == moves.length) {
+					moves = Arrays.copyOf(moves, 2 * moveCount);
+					moveWhens = Arrays.copyOf(moveWhens, 2 * moveCount);
 				}
+				moves[moveCount] = event;
+				moveWhens[moveCount] = inputs.getWhen();
+				moveCount++;
 			}
 		}
-		for (int i = 0; i < level; i++) {
-			if (!preserve) {
-				newEnemies.add(new Enemy(true));
-			}
+	}
+
+	/**
+	 * Queues a key press for the Animator, on the event thread. If the queue is full,
+	 * the Animator is woken to take from it, and this waits until there is room.
+	 */
+	private void offer(int event, long when) {
+		while (!inputs.offer(event, when)) {
+			LockSupport.unpark(animator);
+			Thread.yield();
 		}
-		newEnemies.add(new Enemy(false));
-		enemies = newEnemies;
-		percentageArea = percentageArea();
-		setStatus("Level " + level + " Score " + (total + percentageArea));
-		startTime = System.currentTimeMillis();
-		percentageTime = 100;
-		crashed = false;
-		aborted = false;
-		gameover = false;
-	}
-
-	private void crash() {
-		halted = true;
-		lives--;
-		percentageArea = percentageArea();
-		setStatus("Level " + level + " Score " + (total + percentageArea));
-		if (lives > 0) {
-			repaint();
-			sleep(3000);
-			// In case user aborted during delay...
-			if (!aborted) {
-				play(true);
-				halted = false;
-				repaint();
-			}
+	}
+
+	/**
+	 * The oldest move waiting for a tick, or GameModel.NONE if there is none.
+	 */
+	private int nextMove() {
+		if (moveCount == 0) {
+			return GameModel.NONE;
+		}
+		int move = moves[0];
+		inputLatency.record(System.currentTimeMillis() - moveWhens[0]);
+		moveCount--;
+		System.arraycopy(moves, 1, moves, 0, moveCount);
+		System.arraycopy(moveWhens, 1, moveWhens, 0, moveCount);
+		return move;
+	}
+
+	/**
+	 * Publishes a snapshot at the new size when the game has been resized, and redraws it.
+	 */
+	private void resized() {
+		int size = this.size;
+		if ((size >>> 16) == 0 || (size & 0xffff) == 0 ||
+			published != null && size == (published.width << 16 | published.height)) {
 			return;
 		}
-		total += percentageArea;
-		if (total > 0) {
-			String scoreString = "" + total;
-			while (scoreString.length() < 3) {
-				scoreString = " " + scoreString;
+		publish();
+		if (active) {
+			requestFrame();
+		} else {
+			repaint();
+		}
+	}
+
+	private void start() {
+		moved = 0;
+		publish();
+		updateScore();
+		submit();
+		if (active) {
+			requestFrame();
+		} else {
+			repaint();
+		}
+	}
+
+	/**
+	 * Hands the position over to the autopilot, which searches it for most of the next tick period.
+	 */
+	private void submit() {
+		if (autopilotMode != AUTOPILOT_OFF && !model.isGameOver()) {
+			autopilot.setBudget(3 * delay / 4);
+			autopilot.submit(model);
+		}
+	}
+
+	/**
+	 * Starts the given phase after waitMillis, to last for millis.
+	 */
+	private void setPhase(int phase, int waitMillis, int millis) {
+		phaseStart = System.nanoTime() + waitMillis * 1000000L;
+		phaseEnd = phaseStart + millis * 1000000L;
+		change(PHASE, phase);
+	}
+
+	/**
+	 * Moves on from the current phase once its time is up, stepping the winner animation meanwhile,
+	 * and returns the number of nanoseconds until it next needs advancing, or 0 when playing.
+	 */
+	private long advance(long now) {
+		int state = this.state.get();
+		switch (state & PHASE) {
+		case PHASE_CRASH:
+		case PHASE_LEVEL:
+			if ((state & ABORTED) != 0) {
+				// Stays as it was, until a new game
+				change(PHASE, PHASE_PLAY);
+				return 0;
 			}
-			boolean newHighScore = false;
-			boolean inserted = false;
-			for (int i = 0; i < highScores.size(); i++) {
-				String s = (String) highScores.get(i);
-				s = s.trim();
-				try {
-					int score = Integer.parseInt(s);
-					if (total >= score) {
-						highScores.add(i, scoreString);
-						inserted = true;
-						if (i == 0) {
-							newHighScore = true;
-						}
-						break;
-					}
-				} catch (NumberFormatException nfe) {
-				}
+			if (now < phaseEnd) {
+				return phaseEnd - now;
 			}
-			if (!inserted) {
-				highScores.add(scoreString);
-				if (highScores.size() == 1) {
-					newHighScore = true;
-				}
+			model.resume();
+			start();
+			change(PHASE, PHASE_PLAY);
+			return 0;
+		case PHASE_WINNER:
+			if (now < phaseStart) {
+				return phaseStart - now;
 			}
-			while (highScores.size() > 10) {
-				highScores.remove(highScores.size() - 1);
+			if (now >= phaseEnd || !hasFocus()) {
+				change(PHASE | WINNER, PHASE_PLAY | HIGH_SCORES);
+				repaint();
+				return 0;
 			}
-			saveHighScores();
-			if (newHighScore) {
-				sleep(1000);
-				winner();
-				showHighScores = true;
+			winnerStep = (int) ((now - phaseStart) / (WINNER_STEP_MILLIS * 1000000L));
+			change(0, WINNER);
+			if (active) {
+				requestFrame();
+			} else {
 				repaint();
 			}
+			return WINNER_STEP_MILLIS * 1000000L;
+		}
+		return 0;
+	}
+
+	private void gameover() {
+		int total = model.getTotal();
+		// Saved in the background
+		if (recording != null) {
+			highScores.save(recording.copy(), recordingFile);
+		}
+		int position = highScores.add(total, model.getLevel(), model.getElapsed());
+		updateHighScoreStrings();
+		if (timed && inputLatency.getCount() > 0) {
+			System.out.println("Input latency " + inputLatency.getPercentile(50) + "/" +
+				inputLatency.getPercentile(90) + "/" + inputLatency.getPercentile(99) +
+				" ms at 50/90/99%, max " + inputLatency.getMax() + " ms, over " + inputLatency.getCount() + " moves");
+			inputLatency.reset();
+		}
+		change(0, HALTED | GAMEOVER);
+		if (total > 0 && position == 0) {
+			// Celebrate after a moment, then show the high scores
+			setPhase(PHASE_WINNER, WINNER_WAIT_MILLIS, WINNER_MILLIS);
 		}
-		level = 1;
-		gameover = true;
 		repaint();
 	}
 
+	/**
+	 * Takes the level and score from the model, on the Animator thread, and shows them.
+	 */
+	private void updateScore() {
+		statusNanos = System.nanoTime();
+		score = "Level " + model.getLevel() + " Score " + model.getScore();
+		setScore();
+	}
+
+	private void setScore() {
+		String text = score;
+		if (autopilotMode != AUTOPILOT_OFF) {
+			text += (autopilotMode == AUTOPILOT_HINT ? " Hint " : " Autopilot ") +
+				autopilot.getRolloutsPerSecond() + "/s";
+		}
+		setStatus(text);
+	}
 	protected void setStatus(String text) {
 		Container parent = getParent();
 		while (parent != null) {
@@ -349,86 +749,31 @@ public class Game extends Container implements KeyListener, FocusListener {
 		return null;
 	}
 
-	private int percentageArea() {
-		if (target == 0) {
-			return 0;
-		}
-		int todo = 0;
-		for (int row = 0; row < rows; row++) {
-			for (int col = 0; col < cols; col++) {
-				if (cells[row][col] == INSIDE || cells[row][col] == ACTIVE) {
-					todo++;
-				}
-			}
-		}
-		return (target - todo) * 100 / target;
-	}
-
-	private int percentageTime() {
-		long currentTime = System.currentTimeMillis();
-		int lapsedTime = (int) ((currentTime - startTime) / 1000);
-		int totalTime = 60 * level;
-		int x = 100 * (totalTime - lapsedTime) / totalTime;
-		x = x < 0 ? 0 : x;
-int numEnemies = 10 - x / 10;
-if (enemies.size() - level < numEnemies) {
-	enemies.add(new Enemy(false));
-}
-		return x;
-	}
-
-	private void fix(int row, int col) {
-		if (row < 0 || row >= rows) {
-			return;
-		}
-		if (col < 0 || col >= cols) {
-			return;
-		}
-		if (cells[row][col] != INSIDE) {
-			return;
-		}
-		cells[row][col] = FIXED;
-		fix(row - 1, col - 1);
-		fix(row - 1, col);
-		fix(row - 1, col + 1);
-		fix(row, col - 1);
-		fix(row, col + 1);
-		fix(row + 1, col - 1);
-		fix(row + 1, col);
-		fix(row + 1, col + 1);
-	}
-
-	private void winner() {
-		winner = true;
-		Graphics g = getGraphics();
+	private void drawWinner(Graphics g, int width, int height) {
 		String string = "High Score!";
-		int fontSize = width / string.length();
-		fontSize = fontSize > height / 2 ? height / 2 : fontSize;
-		int fw = 0;
-		while (true) {
-			Font font = new Font("SansSerif", Font.BOLD, fontSize);
-			g.setFont(font);
-			FontMetrics fm = g.getFontMetrics(font);
-			fw = fm.stringWidth(string);
-			if (fw < width) {
-				break;
-			}
-			fontSize -= 4;
-		}
-		int color = 0;
-		for (int i = 0; i < 300; i++) {
-			if (!hasFocus()) {
-				break;
-			}
-			if (i % 10 == 0) {
-				g.setColor(winnerColors[color++ % winnerColors.length]);
-				g.fillRect(0, 0, width, height);
+		// Only work out the font again when the size changes
+		if (winnerFont == null || winnerSize.width != width || winnerSize.height != height) {
+			winnerSize = new Dimension(width, height);
+			int fontSize = width / string.length();
+			fontSize = fontSize > height / 2 ? height / 2 : fontSize;
+			while (true) {
+				Font font = new Font("SansSerif", Font.BOLD, fontSize);
+				FontMetrics fm = g.getFontMetrics(font);
+				if (fm.stringWidth(string) < width) {
+					winnerFont = font;
+					winnerWidth = fm.stringWidth(string);
+					break;
+				}
+				fontSize -= 4;
 			}
-			g.setColor(randomColor());
-			g.drawString(string, width / 2 - fw / 2, height / 2 + fontSize / 2);
-			sleep(10);
 		}
-		winner = false;
+		// The background changes every 10 steps
+		g.setColor(winnerColors[(winnerStep / 10) % winnerColors.length]);
+		g.fillRect(0, 0, width, height);
+		int fontSize = winnerFont.getSize();
+		g.setFont(winnerFont);
+		g.setColor(randomColor());
+		g.drawString(string, width / 2 - winnerWidth / 2, height / 2 + fontSize / 2);
 	}
 
 	private Color randomColor() {
@@ -442,134 +787,117 @@ if (enemies.size() - level < numEnemies) {
 		return new Color(red, green, blue);
 	}
 
-	private void sleep(int millis) {
-		try {
-			Thread.sleep(millis);
-		} catch (InterruptedException ie) {
-		}
-		startTime += millis;
-	}
-
 	public void keyPressed(KeyEvent e) {
 		char keyChar = e.getKeyChar();
 		int keyCode = e.getKeyCode();
-		long currentTime = e.getWhen();
+		long when = e.getWhen();
+		int level = -1;
 		if (keyChar == 'n') {
 			level = 1;
-			newGame = true;
 		}
 		try {
 			int value = Integer.parseInt("" + keyChar);
 			if (value >= 1 && value <= 9) {
 				level = value;
+			} else {
+				// Restart the current level, which the Animator looks up
+				level = 0;
 			}
-			newGame = true;
 		} catch (NumberFormatException nfe) {
 		}
-		if (newGame) {
-			warmed = true;
-			// all the fields animator waits on...
-			paused = false;
-			aborted = false;
-			halted = false;
-			gameover = false;
-			showHelpStrings = false;
-			showHighScores = false;
-			if (animator.isAlive()) {
-				animator.interrupt();
-			}
+		if (level >= 0) {
+			// all the flags animator waits on...
+			// The old game stops before the new one is queued, and the Animator starts
+			// the new one when it takes it from the queue, along with its level.
+			change(PAUSED | ABORTED | HALTED | GAMEOVER | HELP | HIGH_SCORES, NEW_GAME | WARMED);
+			offer(INPUT_NEW_GAME + level, when);
+			LockSupport.unpark(animator);
 			return;
 		}
-		int dir = Player.NONE;
+		int dir = GameModel.NONE;
 		if (keyChar == 'i' || keyCode == KeyEvent.VK_UP) {
-			dir = Player.UP;
+			dir = GameModel.UP;
 		}
 		if (keyChar == 'k' || keyCode == KeyEvent.VK_DOWN) {
-			dir = Player.DOWN;
+			dir = GameModel.DOWN;
 		}
 		if (keyChar == 'j' || keyCode == KeyEvent.VK_LEFT) {
-			dir = Player.LEFT;
+			dir = GameModel.LEFT;
 		}
 		if (keyChar == 'l' || keyCode == KeyEvent.VK_RIGHT) {
-			dir = Player.RIGHT;
-		}
-		if (dir == Player.UP || 
-			dir == Player.DOWN ||
-			dir == Player.LEFT ||
-			dir == Player.RIGHT) {
-			if (player != null) {
-				player.dir = dir;
-				stopped = false;
+			dir = GameModel.RIGHT;
+		}
+		if (dir != GameModel.NONE) {
+			offer(dir, when);
+			return;
+		}
+		if (keyChar == 'o') {
+			// Off, hint, play, off...
+			if (autopilot == null) {
+				autopilot = new Autopilot(3 * delay / 4);
+				autopilot.setListener(new Runnable() {
+					public void run() {
+						showHint();
+					}
+				});
+				autopilot.start();
 			}
+			// The position is handed over after the next tick
+			autopilotMode = (autopilotMode + 1) % 3;
+			setScore();
+			repaint();
+			return;
+		}
+		if (keyChar == 'm') {
+			if (!change(METRICS, 0, 0, METRICS)) {
+				change(METRICS, 0);
+			}
+			repaint();
 			return;
 		}
 		if (keyChar == 'p') {
-			paused = paused ? false : true;
-			if (paused) {
-				pausedTime = currentTime;
-			} else {
-				if (pausedTime > 0) {
-					startTime += (currentTime - pausedTime);
-				}
+			if (!change(PAUSED, 0, 0, PAUSED)) {
+				change(PAUSED, 0);
 			}
 			repaint();
 			return;
 		}
 		if (keyCode == KeyEvent.VK_ENTER) {
-			showHelpStrings = false;
-			showHighScores = false;
-			if (halted && haltedTime > 0) {
-				startTime += (currentTime - haltedTime);
-				halted = false;
-			}
+			change(HELP | HIGH_SCORES, 0);
+			change(HALTED | SUSPENDED, HALTED | SUSPENDED, HALTED, 0);
 			repaint();
 		}
 		if (keyChar == ' ') {
-			stopped = true;
+			offer(GameModel.STOP, when);
 			return;
 		}
 		if (keyChar == '+' || keyChar == 'f') {
-			delay -= DELAY_INCREMENT;
-			if (delay <= 0) {
-				delay = 1;
-			}
+			offer(INPUT_FASTER, when);
 			return;
 		}
 		if (keyChar == '=' || keyChar == 'd') {
-			delay = DEFAULT_DELAY;
+			offer(INPUT_DEFAULT_SPEED, when);
 			return;
 		}
 		if (keyChar == '-' || keyChar == 's') {
-			delay += DELAY_INCREMENT;
-			if (delay > 201) {
-				delay = 201;
-			}
+			offer(INPUT_SLOWER, when);
 			return;
 		}
 		if (keyChar == 'z') {
-			showHighScores = true;
-			showHelpStrings = false;
-			if (!halted) {
-				halted = true;
-				haltedTime = currentTime;
-			}
+			change(HELP, HIGH_SCORES);
+			change(HALTED, 0, 0, HALTED | SUSPENDED);
 			repaint();
 			return;
 		}
 		if (keyChar == 'h') {
-			showHelpStrings = true;
-			showHighScores = false;
-				repaint();
-			if (!halted) {
-				halted = true;
-				haltedTime = currentTime;
-			}
+			change(HIGH_SCORES, HELP);
+			change(HALTED, 0, 0, HALTED | SUSPENDED);
+			repaint();
 			return;
 		}
 		if (keyChar == 'a' || keyCode == KeyEvent.VK_ESCAPE) {
-			lives = 0;
-			aborted = true;
-			animator.interrupt();
+			change(0, ABORTED);
+			LockSupport.unpark(animator);
 			repaint();
 			return;
 		}
@@ -582,376 +910,216 @@ if (enemies.size() - level < numEnemies) {
 	}
 
 	public void focusGained(FocusEvent e) {
-		long currentTime = System.currentTimeMillis();
-		if (!paused && halted && haltedTime > 0) {
-			startTime += currentTime - haltedTime;
-			haltedTime = 0;
-			halted = false;
-		}
+		change(PAUSED | HALTED | SUSPENDED, HALTED | SUSPENDED, HALTED | SUSPENDED, 0);
 	}
 
 	public void focusLost(FocusEvent e) {
-		long currentTime = System.currentTimeMillis();
-		if (!paused && !halted) {
-			halted = true;
-			haltedTime = currentTime;
-		}
+		change(PAUSED | HALTED, 0, 0, HALTED | SUSPENDED);
 	}
 
-	private void loadHighScores() {
-		ArrayList newHighScores = new ArrayList();
-		try {
-			FileInputStream fis = new FileInputStream("highscores");
-			BufferedReader br = new BufferedReader(new InputStreamReader(fis));
-			while (true) {
-				String s = br.readLine();
-				if (s == null || s.length() <= 0) {
-					break;
-				}
-				newHighScores.add(s);
+	private void updateHighScoreStrings() {
+		ArrayList strings = new ArrayList();
+		for (int i = 0; i < highScores.getCount(); i++) {
+			String s = "" + highScores.getScore(i);
+			while (s.length() < 3) {
+				s = " " + s;
 			}
-			br.close();
-		} catch (IOException ioe) {
-		}
-		highScores = newHighScores;
-	}
-
-	private void saveHighScores() {
-		try {
-			FileOutputStream fos = new FileOutputStream("highscores");
-			PrintWriter pw = new PrintWriter(new OutputStreamWriter(fos));
-			for (int i = 0; i < highScores.size(); i++) {
-				String s = (String) highScores.get(i);
-				pw.println(s);
-			}
-			pw.flush();
-			pw.close();
-
-		} catch (IOException ioe) {
+			strings.add(s);
 		}
+		highScoreScreen.setStrings(strings);
 	}
 
-	private void drawPercentageTime() {
-		Graphics g = getGraphics();
-		if (g == null) {
-			return;
-		}
+	private void drawPercentageTime(Graphics g, Snapshot s) {
 		int x = 0;
-		int y = rows * cellHeight;
-		int w = cols * cellWidth;
-		int h = height - y;
+		int y = s.board.getHeight();
+		int w = s.board.getWidth();
+		int h = s.height - y;
 		g.setColor(Color.darkGray);
 		g.fillRect(x, y, w, h);
 		g.setColor(Color.gray);
-		g.fillRect(x, y, percentageTime * w / 100, h);
+		g.fillRect(x, y, s.percentageTime * w / 100, h);
 		g.setColor(Color.black);
 		g.drawRect(x, y, w - 1, h - 1);
 	}
 
-	static Image loadImage(Component component, String name) {
-		Image image = null;
-		URL url = null;
-		MediaTracker mt = new MediaTracker(component);
-		//First try from current directory
-		ClassLoader cl = component.getClass().getClassLoader();
-		if (cl != null) {
-			url = cl.getResource(name);
+	/**
+	 * Waits for the overlay images to finish loading.
+	 */
+	void awaitImages() throws InterruptedException {
+		pausedOverlay.await();
+		abortedOverlay.await();
+		gameoverOverlay.await();
+	}
+
+	/**
+	 * Waits for the Animator to publish a snapshot at the size last drawn at, for the next paint() to draw.
+	 */
+	void awaitSnapshot() throws InterruptedException {
+		while (true) {
+			Snapshot s = (Snapshot) latest.get();
+			if (s != null && size == (s.width << 16 | s.height)) {
+				return;
+			}
+			Thread.sleep(1);
 		}
-		//if not found, try CLASSPATH
-		if (url == null) {
-			url = ClassLoader.getSystemResource(name);
+	}
+
+	/**
+	 * Stops the Animator, the Renderer and the autopilot, and adds any games still waiting
+	 * to the leaderboard before closing it. The game can't be played after this.
+	 */
+	public void shutdown() throws InterruptedException {
+		shutdown = true;
+		LockSupport.unpark(animator);
+		synchronized (frameLock) {
+			frameLock.notifyAll();
 		}
-		try {
-			image = component.getToolkit().getImage(url);
-		} catch (Exception e) {
-			e.printStackTrace();
+		animator.join();
+		if (renderer != null) {
+			renderer.join();
 		}
-		try {
-			mt.addImage(image, 0);
-			mt.waitForAll();
-		} catch (Exception e) {
-			e.printStackTrace();
+		if (autopilot != null) {
+			autopilot.shutdown();
 		}
-		return image;
+		highScores.close();
 	}
 
+	/**
+	 * Prints how long after the game was created the first frame was drawn,
+	 * and at the end of each game, how long moves took from key press to tick.
+	 */
+	public void setTimed(boolean timed) {
+		this.timed = timed;
+	}
+
+	private void drawn() {
+		if (firstFrameNanos == 0) {
+			firstFrameNanos = System.nanoTime();
+			if (timed) {
+				System.out.println("First frame after " + (firstFrameNanos - createdNanos) / 1000000 + " ms");
+			}
+		}
+	}
+
+	/**
+	 * Runs ticks at a fixed rate of one every delay milliseconds, measured with System.nanoTime().
+	 * Time spent ticking, and any oversleeping, is carried over in lag and made up
+	 * with extra ticks, up to MAX_CATCH_UP at a time.
+	 * The pauses after a crash or level, and the winner animation, are phases it advances
+	 * in between, so it never sleeps for longer than the next tick or phase change.
+	 * Key presses reach it through the input queue, which it takes from before each tick.
+	 */
 	class Animator extends Thread {
 		public void run() {
 			setPriority(MAX_PRIORITY);
-			while (true) {
-				while (!warmed) {
-					try {
-						Thread.sleep(delay);
-					} catch (InterruptedException ie) {
+			long previous = System.nanoTime();
+			long lag = 0;
+			while (!shutdown) {
+				while (!is(WARMED) && !shutdown) {
+					// Keep up with key presses, so the queue has room for the one that starts a game
+					drainInput();
+					resized();
+					LockSupport.parkNanos(delay * 1000000L);
+				}
+				drainInput();
+				if (starting) {
+					starting = false;
+					change(NEW_GAME | WINNER | PHASE, PHASE_PLAY);
+					int level = Game.this.level;
+					if (level == 0) {
+						level = model.isGameOver() ? 1 : model.getLevel();
 					}
+					model.reset(level);
+					Game.this.start();
+					previous = System.nanoTime();
+					lag = 0;
 				}
-				if (newGame) {
-					total = 0;
-					lives = DEFAULT_LIVES;
-					play(false);
-					repaint();
-					newGame = false;
+				resized();
+				long now = System.nanoTime();
+				long wait = advance(now);
+				if (running()) {
+					lag += now - previous;
+				} else {
+					// Game time stands still
+					lag = 0;
 				}
-				if (player != null) {
-					player.move();
+				previous = now;
+				long period = delay * 1000000L;
+				if (running()) {
+					metrics.recordBehind(lag / period);
 				}
-				if (enemies != null) {
-					for (int i = 0; i < enemies.size(); i++) {
-						Enemy enemy = (Enemy) enemies.get(i);
-						enemy.move();
+				for (int i = 0; i < MAX_CATCH_UP && lag >= period && running(); i++) {
+					lag -= period;
+					Object tick = events.beginTick();
+					long start = System.nanoTime();
+					int event = tick();
+					metrics.recordTick(System.nanoTime() - start);
+					if (tick != null) {
+						events.endTick(tick, model.getTicks(), event, model.getEnemyCount());
 					}
 				}
-				int x = percentageTime();
-				if (x < percentageTime) {
-					percentageTime = x;
-					drawPercentageTime();
+				if (lag >= period) {
+					// Too far behind, so drop the missed ticks
+					metrics.addDropped(lag / period);
+					lag = 0;
 				}
-				if (percentageTime <= 0) {
-					crash();
+				long remaining = period - lag;
+				if (wait > 0 && wait < remaining) {
+					remaining = wait;
 				}
-				do {
-					try {
-						Thread.sleep(delay);
-					} catch (InterruptedException ie) {
-					}
-				} while (paused || aborted || halted || gameover || showHelpStrings || showHighScores);
+				// Woken early by a new game or abort
+				LockSupport.parkNanos(remaining);
 			}
 		}
 	}
-		
-	class Player {
-		static final int NONE = 0;
-		static final int UP = 1;
-		static final int DOWN = 2;
-		static final int LEFT = 3;
-		static final int RIGHT = 4;
-		Color color = Color.yellow;
-		int row;
-		int col;
-		int dir = UP;
-		boolean inside;
-
-		public Player() {
-			stopped = true;
-			for (int row = 0; row < rows; row++) {
-				for (int col = cols - 1; col >= 0; col--) {
-					if (cells[row][col] == SPARE) {
-						cells[row][col] = BLANK;
-						this.row = row;
-						this.col = col;
-						break;
-					}
-				}
-			}
-		}
 
-		public void move() {
-			if (crashed) {
-				crash();
-				crashed = false;
-				return;
-			}
-			if (stopped || paused || aborted || halted || gameover || showHelpStrings || showHighScores) {
-				return;
-			}
-			int oldRow = row;
-			int oldCol = col;
-			if (dir == UP) {
-				row = oldRow > 0 ? oldRow - 1 : oldRow;
-			}
-			if (dir == DOWN) {
-				row = oldRow < rows - 1 ? oldRow + 1 : oldRow;
-			}
-			if (dir == LEFT) {
-				col = oldCol > 0 ? oldCol - 1 : oldCol;
-			}
-			if (dir == RIGHT) {
-				col = oldCol < cols - 1 ? oldCol + 1 : oldCol;
-			}
-			if (row != oldRow || col != oldCol) {
-				Graphics g = getGraphics();
-				if (cells[oldRow][oldCol] == ACTIVE) {
-					g.setColor(COLOR_ACTIVE);
-				}
-				if (cells[oldRow][oldCol] == OUTSIDE) {
-					g.setColor(COLOR_OUTSIDE);
-				}
-				if (cells[oldRow][oldCol] == SPARE) {
-					g.setColor(COLOR_SPARE);
-				}
-				if (cells[oldRow][oldCol] == BLANK) {
-					g.setColor(COLOR_BLANK);
-				}
-				g.fillRect(oldCol * cellWidth, oldRow * cellHeight, cellWidth, cellHeight);
-				if (cells[oldRow][oldCol] == SPARE) {
-					g.setColor(COLOR_BLANK);
-					g.drawRect(oldCol * cellWidth, oldRow * cellHeight, cellWidth - 1, cellHeight - 1);
-				}
-				draw(g);
-			}
-			if (cells[row][col] == ACTIVE) {
-				// Crashed into himself
-				crashed = true;
-				crash();
-				return;
-			}
-			if (cells[row][col] == INSIDE) {
-				inside = true;
-				cells[row][col] = ACTIVE;
-			}
-			if (inside && cells[row][col] == OUTSIDE) {
-				percentageTime = percentageTime();
-				stopped = true;
-				inside = false;
-				halted = true;
-				for (int i = 0; i < enemies.size(); i++) {
-					Enemy enemy = (Enemy) enemies.get(i);
-					fix(enemy.row, enemy.col);
-				}
-				for (int row = 0; row < rows; row++) {
-					for (int col = 0; col < cols; col++) {
-						if (cells[row][col] == ACTIVE) {
-							cells[row][col] = OUTSIDE;
-						}
-						if (cells[row][col] == INSIDE) {
-							cells[row][col] = OUTSIDE;
-						}
-						if (cells[row][col] == FIXED) {
-							cells[row][col] = INSIDE;
+	/**
+	 * Draws and presents whole frames when rendering actively.
+	 * A frame is drawn for each tick or repaint, but no more than fps frames a second.
+	 */
+	class Renderer extends Thread {
+		public void run() {
+			long frameNanos = fps > 0 ? 1000000000L / fps : 0;
+			long drawn = 0;
+			while (!shutdown) {
+				synchronized (frameLock) {
+					// While the game is running, keep drawing frames in between ticks
+					// so the pieces move smoothly, unless the frame rate is unlimited.
+					while (frameRequests == drawn && !(frameNanos > 0 && running()) && !shutdown) {
+						try {
+							frameLock.wait();
+						} catch (InterruptedException ie) {
 						}
 					}
+					drawn = frameRequests;
 				}
-				repaint();
-				percentageArea = percentageArea();
-				setStatus("Level " + level + " Score " + (total + percentageArea));
-				// Target captured area is indirectly proportional to level.
-				// ie. Level 1 = 90%, Level 2 = 85%, Level 3 = 80%, ... Level 9 = 50%
-				int target = 100 - 5 * (level + 1);
-				if (percentageArea >= target) {
-					total += percentageArea + percentageTime;
-					setStatus("Level " + level + " Score " + total);
-					level++;
-					sleep(3000);
-					play(false);
-					repaint();
-				}
-				halted = false;
-			}
-		}
-
-		void draw(Graphics g) {
-			g.setColor(color);
-			g.fillRect(col * cellWidth, row * cellHeight, cellWidth, cellHeight);
-			g.setColor(Color.black);
-			g.drawRect(col * cellWidth + 1, row * cellHeight + 1, cellWidth - 2, cellHeight - 2);
-		}
-
-	}
-
-	class Enemy {
-		static final int SE = 0;
-		static final int SW = 1;
-		static final int NW = 2;
-		static final int NE = 3;
-		int[][] array = {
-			{SE, NE, SW, NW},
-			{SW, SE, NW, NE},
-			{NW, SW, NE, SE},
-			{NE, NW, SE, SW}
-		};
-		Color color;
-		boolean inside;
-		int row;
-		int col;
-		int dir = (int) (Math.random() * 4);
-		
-		public Enemy(boolean inside) {
-			this.inside = inside;
-			color = new Color(160, 0, 0);
-			while (true) {
-				row = (int) (Math.random() * rows);
-				col = (int) (Math.random() * cols);
-				if (!inside && 
-					((row > rows / 10 && row < 9 * rows / 10) ||
-					(col > cols / 10 && col < 9 * cols / 10))) {
-					continue;
-				}
-				if (inside && cells[row][col] == INSIDE) {
-					break;
-				}
-				if (!inside && cells[row][col] == OUTSIDE) {
-					break;
-				}
-			}
-		}
-		
-		public void move() {
-			if (paused || aborted || halted || crashed || gameover || showHelpStrings || showHighScores) {
-				return;
-			}
-			int oldRow = row;
-			int oldCol = col;
-			int oldDir = dir;
-			for (int i = 0; i < 4; i++) {
-				dir = array[oldDir][i];
-				if (dir == SE) {
-					row = oldRow + 1;
-					col = oldCol + 1;
-				}
-				if (dir == SW) {
-					row = oldRow + 1;
-					col = oldCol - 1;
-				}
-				if (dir == NW) {
-					row = oldRow - 1;
-					col = oldCol - 1;
-				}
-				if (dir == NE) {
-					row = oldRow - 1;
-					col = oldCol + 1;
-				}
-				if (row < 0 || row >= rows ||
-					col < 0 || col >= cols) {
-					continue;
-				}
-				if (inside && cells[row][col] != OUTSIDE) {
-					break;
-				}
-				if (!inside && cells[row][col] == OUTSIDE) {
-					break;
-				}
-			}
-			Graphics g = getGraphics();
-			boolean hit = false;
-			if (inside && cells[player.row][player.col] == INSIDE ||
-				!inside && cells[player.row][player.col] == OUTSIDE) {
-				if (row == player.row && col == player.col) {
-					hit = true;
+				long start = System.nanoTime();
+				BufferStrategy strategy = getBufferStrategy();
+				if (strategy != null && isShowing()) {
+					Object repaint = events.beginRepaint();
+					do {
+						do {
+							Graphics g = strategy.getDrawGraphics();
+							drawFrame(g);
+							g.dispose();
+							drawn();
+						} while (strategy.contentsRestored());
+						strategy.show();
+					} while (strategy.contentsLost());
+					Toolkit.getDefaultToolkit().sync();
+					metrics.recordRender(System.nanoTime() - start);
+					if (repaint != null) {
+						events.endRepaint(repaint, getWidth(), getHeight());
+					}
 				}
-			}
-			if (inside) {
-				if (cells[row][col] == ACTIVE) {
-					hit = true;
+				long remaining = frameNanos - (System.nanoTime() - start);
+				if (remaining > 0) {
+					try {
+						Thread.sleep(remaining / 1000000, (int) (remaining % 1000000));
+					} catch (InterruptedException ie) {
+					}
 				}
 			}
-			draw(g);
-			if (inside) {
-				g.setColor(COLOR_INSIDE);
-			} else {
-				g.setColor(COLOR_OUTSIDE);
-			}
-			g.fillRect(oldCol * cellWidth, oldRow * cellHeight, cellWidth, cellHeight);
-			if (hit) {
-				crashed = true;
-			}
-		}
-
-		void draw(Graphics g) {
-			g.setColor(color);
-			g.fillRect(col * cellWidth, row * cellHeight, cellWidth, cellHeight);
-			g.setColor(Color.black);
-			g.drawRect(col * cellWidth + 1, row * cellHeight + 1, cellWidth - 2, cellHeight - 2);
 		}
 	}
 }
-
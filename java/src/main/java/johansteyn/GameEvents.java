@@ -0,0 +1,88 @@
+package johansteyn;
+
+/**
+ * Hooks for recording what the game does as it happens, such as Java Flight Recorder events.
+ * Timed things come in pairs: begin returns something to pass to end, or null when
+ * nothing is being recorded, in which case end needn't be called and its values needn't be worked out.
+ * These hooks do nothing. With the jfr build profile, JfrGameEvents records them as
+ * flight recorder events instead, and get() returns it when the JVM has JFR.
+ */
+public class GameEvents {
+	public static final GameEvents NONE = new GameEvents();
+	private static GameEvents instance;
+
+	/**
+	 * The flight recorder events, if they were built and the JVM has JFR, or else NONE.
+	 */
+	public static synchronized GameEvents get() {
+		if (instance == null) {
+			instance = NONE;
+			try {
+				instance = (GameEvents) Class.forName("johansteyn.JfrGameEvents").getDeclaredConstructor().newInstance();
+			} catch (Exception e) {
+				// Built without the jfr profile
+			} catch (LinkageError le) {
+				// Built with it, but running on a JVM without JFR
+			}
+		}
+		return instance;
+	}
+
+	/**
+	 * A tick of the Animator, including drawing it.
+	 */
+	public Object beginTick() {
+		return null;
+	}
+
+	/**
+	 * The event is what GameModel.step() returned.
+	 */
+	public void endTick(Object tick, long ticks, int event, int enemies) {
+	}
+
+	/**
+	 * A capture, once the player closes a trail.
+	 */
+	public Object beginCapture() {
+		return null;
+	}
+
+	/**
+	 * The cells are those that became outside cells, and the enemies those whose areas were kept.
+	 */
+	public void endCapture(Object capture, int cells, int enemies) {
+	}
+
+	/**
+	 * The player crashed, and has the given lives left.
+	 */
+	public void crash(int level, int lives, long ticks) {
+	}
+
+	/**
+	 * A level started, as a new game or after the last one was completed.
+	 */
+	public void levelStart(int level, int enemies) {
+	}
+
+	/**
+	 * Games being added to the leaderboard and forced out to disk.
+	 */
+	public Object beginHighScoreSave() {
+		return null;
+	}
+
+	public void endHighScoreSave(Object save, int games) {
+	}
+
+	/**
+	 * A whole frame being drawn.
+	 */
+	public Object beginRepaint() {
+		return null;
+	}
+
+	public void endRepaint(Object repaint, int width, int height) {
+	}
+}
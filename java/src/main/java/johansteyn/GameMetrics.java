@@ -0,0 +1,230 @@
+package johansteyn;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.Iterator;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.Notification;
+import javax.management.NotificationEmitter;
+import javax.management.NotificationListener;
+import javax.management.ObjectName;
+import javax.management.openmbean.CompositeData;
+
+/**
+ * How long ticks, frames and captures take, how far the Animator falls behind schedule,
+ * how many enemies there are and how long the garbage collector pauses for.
+ * They are kept in histograms that only count, so recording allocates nothing.
+ * Each histogram is recorded into by a single thread, while other threads read its
+ * counts as they are, which may be a little out of date.
+ * The metrics can be read through JMX, once registered, and drawn over the board as text.
+ */
+public class GameMetrics implements GameMetricsMBean {
+	public static final String NAME = "johansteyn:type=GameMetrics";
+	private static final String GC_NOTIFICATION = "com.sun.management.gc.notification";
+	private static final long LINES_NANOS = 1000000000L; // how long the text lasts before it is redone
+	private Histogram ticks = new Histogram(1000, 50);   // microseconds, by the Animator
+	private Histogram renders = new Histogram(1000, 50); // microseconds, by whoever draws frames
+	private Histogram captures = new Histogram(1000, 50); // microseconds, by the Animator
+	private Histogram behind = new Histogram(64, 1);     // ticks, by the Animator
+	private Histogram enemies = new Histogram(1024, 1);  // by the Animator
+	private Histogram gcPauses = new Histogram(1000, 1); // milliseconds, by the JMX notification thread
+	private volatile long dropped;
+	private volatile String[] lines;
+	private volatile long linesNanos;
+
+	/**
+	 * Registers the metrics as a platform MBean under NAME, replacing any other game's,
+	 * and starts listening for garbage collections.
+	 * Starting the platform MBean server takes a while, so this is best done in the background.
+	 */
+	public void register() {
+		try {
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			ObjectName name = new ObjectName(NAME);
+			if (server.isRegistered(name)) {
+				server.unregisterMBean(name);
+			}
+			server.registerMBean(this, name);
+		} catch (JMException jme) {
+			jme.printStackTrace();
+		}
+		NotificationListener listener = new NotificationListener() {
+			public void handleNotification(Notification notification, Object handback) {
+				gc(notification);
+			}
+		};
+		Iterator i = ManagementFactory.getGarbageCollectorMXBeans().iterator();
+		while (i.hasNext()) {
+			GarbageCollectorMXBean gc = (GarbageCollectorMXBean) i.next();
+			if (gc instanceof NotificationEmitter) {
+				((NotificationEmitter) gc).addNotificationListener(listener, null, null);
+			}
+		}
+	}
+
+	/**
+	 * Records the pause of a collection, as reported by collectors that report each one.
+	 * The cycles of concurrent collectors run alongside the game, so aren't pauses.
+	 */
+	private void gc(Notification notification) {
+		if (!GC_NOTIFICATION.equals(notification.getType())) {
+			return;
+		}
+		CompositeData data = (CompositeData) notification.getUserData();
+		String name = (String) data.get("gcName");
+		if (name.indexOf("Concurrent") >= 0 || name.indexOf("Cycles") >= 0) {
+			return;
+		}
+		CompositeData info = (CompositeData) data.get("gcInfo");
+		gcPauses.record(((Long) info.get("duration")).longValue());
+	}
+
+	void recordTick(long nanos) {
+		ticks.record(nanos / 1000);
+	}
+
+	void recordRender(long nanos) {
+		renders.record(nanos / 1000);
+	}
+
+	void recordCapture(long nanos) {
+		captures.record(nanos / 1000);
+	}
+
+	void recordBehind(long ticks) {
+		behind.record(ticks);
+	}
+
+	void recordEnemies(int count) {
+		enemies.record(count);
+	}
+
+	void addDropped(long ticks) {
+		dropped += ticks;
+	}
+
+	public long getTickCount() {
+		return ticks.getCount();
+	}
+
+	public long getTickMedianMicros() {
+		return ticks.getPercentile(50);
+	}
+
+	public long getTick99Micros() {
+		return ticks.getPercentile(99);
+	}
+
+	public long getTickMaxMicros() {
+		return ticks.getMax();
+	}
+
+	public long getRenderCount() {
+		return renders.getCount();
+	}
+
+	public long getRenderMedianMicros() {
+		return renders.getPercentile(50);
+	}
+
+	public long getRender99Micros() {
+		return renders.getPercentile(99);
+	}
+
+	public long getRenderMaxMicros() {
+		return renders.getMax();
+	}
+
+	public long getCaptureCount() {
+		return captures.getCount();
+	}
+
+	public long getCaptureMedianMicros() {
+		return captures.getPercentile(50);
+	}
+
+	public long getCapture99Micros() {
+		return captures.getPercentile(99);
+	}
+
+	public long getCaptureMaxMicros() {
+		return captures.getMax();
+	}
+
+	public long getBehind99Ticks() {
+		return behind.getPercentile(99);
+	}
+
+	public long getBehindMaxTicks() {
+		return behind.getMax();
+	}
+
+	public long getDroppedTicks() {
+		return dropped;
+	}
+
+	public long getEnemiesMedian() {
+		return enemies.getPercentile(50);
+	}
+
+	public long getEnemiesMax() {
+		return enemies.getMax();
+	}
+
+	public long getGcPauseCount() {
+		return gcPauses.getCount();
+	}
+
+	public long getGcPause99Millis() {
+		return gcPauses.getPercentile(99);
+	}
+
+	public long getGcPauseMaxMillis() {
+		return gcPauses.getMax();
+	}
+
+	public void reset() {
+		ticks.reset();
+		renders.reset();
+		captures.reset();
+		behind.reset();
+		enemies.reset();
+		gcPauses.reset();
+		dropped = 0;
+	}
+
+	/**
+	 * The metrics as lines of text, redone once every LINES_NANOS.
+	 * Whoever draws frames and the Animator may both ask at once, and both redo them,
+	 * which does no harm and saves either waiting for the other.
+	 */
+	String[] getLines() {
+		String[] lines = this.lines;
+		long now = System.nanoTime();
+		if (lines != null && now - linesNanos < LINES_NANOS) {
+			return lines;
+		}
+		lines = new String[] {
+			"tick    " + times(ticks),
+			"render  " + times(renders),
+			"capture " + times(captures),
+			"behind  99% " + behind.getPercentile(99) + " max " + behind.getMax() + " ticks, " + dropped + " dropped",
+			"enemies 50% " + enemies.getPercentile(50) + " max " + enemies.getMax(),
+			"gc      " + gcPauses.getCount() + " pauses, 99% " + gcPauses.getPercentile(99) +
+				" max " + gcPauses.getMax() + " ms"
+		};
+		this.lines = lines;
+		linesNanos = now;
+		return lines;
+	}
+
+	private static String times(Histogram micros) {
+		return "50% " + millis(micros.getPercentile(50)) + " 99% " + millis(micros.getPercentile(99)) +
+			" max " + millis(micros.getMax()) + " ms";
+	}
+
+	private static String millis(long micros) {
+		return micros / 1000 + "." + micros / 100 % 10;
+	}
+}
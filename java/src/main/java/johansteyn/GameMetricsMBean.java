@@ -0,0 +1,57 @@
+package johansteyn;
+
+/**
+ * The game's metrics as seen through JMX, as percentiles of what has been recorded since the last reset.
+ */
+public interface GameMetricsMBean {
+	long getTickCount();
+
+	long getTickMedianMicros();
+
+	long getTick99Micros();
+
+	long getTickMaxMicros();
+
+	long getRenderCount();
+
+	long getRenderMedianMicros();
+
+	long getRender99Micros();
+
+	long getRenderMaxMicros();
+
+	long getCaptureCount();
+
+	long getCaptureMedianMicros();
+
+	long getCapture99Micros();
+
+	long getCaptureMaxMicros();
+
+	/**
+	 * How many ticks behind schedule the Animator was, at the 99th percentile of its wake-ups.
+	 */
+	long getBehind99Ticks();
+
+	long getBehindMaxTicks();
+
+	/**
+	 * Ticks skipped because the Animator was too far behind to catch up.
+	 */
+	long getDroppedTicks();
+
+	long getEnemiesMedian();
+
+	long getEnemiesMax();
+
+	long getGcPauseCount();
+
+	long getGcPause99Millis();
+
+	long getGcPauseMaxMillis();
+
+	/**
+	 * Starts counting again from nothing.
+	 */
+	void reset();
+}
@@ -0,0 +1,1231 @@
+package johansteyn;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * The rules of the game, without any AWT dependency.
+ * A game is started with reset() and advanced one tick at a time with step().
+ * Game time is counted in ticks of tickMillis each, so a model can be run
+ * headless at any speed.
+ */
+public class GameModel {
+	public static final int OUTSIDE = 0;
+	public static final int INSIDE = 1;
+	public static final int ACTIVE = 2;
+	public static final int FIXED = 3;
+	public static final int SPARE = 4;
+	public static final int BLANK = 5;
+	// Input for step()
+	public static final int NONE = 0;
+	public static final int UP = 1;
+	public static final int DOWN = 2;
+	public static final int LEFT = 3;
+	public static final int RIGHT = 4;
+	public static final int STOP = 5;
+	// Events returned by step()
+	public static final int TICK = 0;
+	public static final int CAPTURE = 1;
+	public static final int CRASH = 2;
+	public static final int LEVEL = 3;
+	public static final int GAMEOVER = 4;
+	// Enemy directions
+	static final int SE = 0;
+	static final int SW = 1;
+	static final int NW = 2;
+	static final int NE = 3;
+	// The directions an enemy tries, in order, when moving on from each direction,
+	// indexed by 4 * direction + try
+	static final int[] BOUNCE = {
+		SE, NE, SW, NW,
+		SW, SE, NW, NE,
+		NW, SW, NE, SE,
+		NE, NW, SE, SW
+	};
+	// Row and column steps for each enemy direction
+	static final int[] ROW_STEP = {1, 1, -1, -1};
+	static final int[] COL_STEP = {1, -1, -1, 1};
+	public static final int DEFAULT_LIVES = 3;
+	public static final int DEFAULT_TICK_MILLIS = 120;
+	public static final int DEFAULT_ROWS = 30;
+	public static final int DEFAULT_COLS = 30;
+	public static final int MIN_SIZE = 10;
+	// Fewest enemies worth moving in parallel
+	static final int PARALLEL_ENEMIES = 4096;
+	// Smallest inside area worth labelling in parallel
+	static final int PARALLEL_CELLS = 1 << 20;
+	// Occupancy past which enemies are no longer counted, so a byte per cell is enough
+	private static final int CROWDED = 0xff;
+	private static final ForkJoinPool POOL = ForkJoinPool.commonPool();
+	private int rows;
+	private int cols;
+	private byte[] cells; // row by row, one byte per cell
+	private int[] counts = new int[BLANK + 1]; // number of cells in each state
+	private byte[] occupancy;  // number of enemies on each cell, up to CROWDED, indexed as cells
+	private int[] dirty;       // cells changed since clearDirty()
+	private long[] dirtyBits;  // one bit per cell, set for the cells in dirty
+	private int dirtyCount;
+	private boolean allDirty;  // too many changes to list, or a whole new board
+	private int target;
+	private int insideTop;     // the rectangle the inside area starts as
+	private int insideBottom;
+	private int insideLeft;
+	private int insideRight;
+	private int level = 1;
+	private int total;
+	private int lives = DEFAULT_LIVES;
+	private int tickMillis = DEFAULT_TICK_MILLIS;
+	private long time;        // game time in the current level, in milliseconds
+	private long elapsed;     // game time since reset(), in milliseconds
+	private int percentageArea;
+	private int percentageTime;
+	private boolean stopped;
+	private boolean crashed;
+	private boolean resumed;  // resume() ran since the last step()
+	private long seed;
+	private Random random;
+	private long ticks;       // number of steps since reset()
+	private long captureNanos; // how long the last capture() took
+	private Recording recording;
+	private GameEvents events = GameEvents.NONE;
+	private boolean gameover;
+	private int pending = TICK; // CRASH or LEVEL, waiting for resume()
+	private Player player;
+	// The enemies, one array element per enemy
+	private int enemyCount;
+	private int[] enemyRow = new int[16];
+	private int[] enemyCol = new int[16];
+	private int[] enemyDir = new int[16];
+	private boolean[] enemyInside = new boolean[16];
+	// Work arrays for moveEnemiesParallel()
+	private int[] nextRow = new int[0];
+	private int[] nextCol = new int[0];
+	private int[] nextDir = new int[0];
+	private int[] bandOrder = new int[0];  // enemy indices, sorted by band
+	private int[] bandStart = new int[0];  // where each band starts in bandOrder
+	private int[] bandHit = new int[0];    // the first enemy in each band to hit anything
+	private Band[] bandTasks = new Band[0]; // a task for each band, reused every tick
+	private boolean bandInsideHits;        // what the enemies can hit this tick, for the bands
+	private boolean bandOutsideHits;
+	int parallelEnemies = PARALLEL_ENEMIES; // raised by the benchmarks to time the sequential moves
+	// Work arrays for capture()
+	private int[] parent;                   // union-find over runs, numbered in the order they are found
+	private int[] merged = new int[0];      // every strip's runs, renumbered after the strips before it
+	private long[] enemyBits = new long[0]; // one bit per cell, set for inside cells with an enemy
+	private long[] keep = new long[0];      // one bit per run, set for the roots of regions with an enemy
+	private int[] stripStart = new int[0];  // the first row of each strip
+	private int[] stripKept = new int[0];   // inside cells kept in each strip
+	private int[][] stripRuns = new int[0][];  // runs holding an enemy in each strip
+	private int[] stripRunCount = new int[0];
+	private int[][] stripParent = new int[0][]; // union-find over each strip's own runs
+	private int[] stripRunTotal = new int[0];   // runs in each strip
+	private int[] stripLastRow = new int[0];    // the first of each strip's runs on its last row
+	private int[] stripFirstRun = new int[0];   // the number of each strip's first run in merged
+	private int[][][] stripBuffers = new int[0][][]; // the first and last columns of runs on two rows, for each strip
+	int parallelCells = PARALLEL_CELLS;    // raised by the benchmarks to time the sequential capture
+
+	public GameModel() {
+		this(DEFAULT_ROWS, DEFAULT_COLS);
+	}
+
+	public GameModel(int rows, int cols) {
+		if (rows < MIN_SIZE || cols < MIN_SIZE) {
+			throw new IllegalArgumentException("Board must be at least " + MIN_SIZE + "x" + MIN_SIZE + ": " + rows + "x" + cols);
+		}
+		this.rows = rows;
+		this.cols = cols;
+		cells = new byte[rows * cols];
+		occupancy = new byte[cells.length];
+		dirty = new int[Math.min(cells.length, 4096)];
+		dirtyBits = new long[(cells.length + 63) / 64];
+		reset(1);
+	}
+
+	public void reset(int level) {
+		reset(level, System.nanoTime());
+	}
+
+	/**
+	 * Starts a new game. Two games started with the same seed on boards of the same size
+	 * play out exactly the same given the same input at the same ticks.
+	 */
+	public void reset(int level, long seed) {
+		this.seed = seed;
+		random = new Random(seed);
+		ticks = 0;
+		elapsed = 0;
+		resumed = false;
+		if (recording != null) {
+			recording.start(rows, cols, level, seed);
+		}
+		this.level = level;
+		total = 0;
+		lives = DEFAULT_LIVES;
+		pending = TICK;
+		gameover = false;
+		play(false);
+	}
+
+	/**
+	 * Advances the game by one tick, applying the given input (NONE, STOP or a direction) first.
+	 * Returns the most significant thing that happened: TICK, CAPTURE, CRASH, LEVEL or GAMEOVER.
+	 * After a CRASH or LEVEL the next step() resumes play, unless resume() was called already.
+	 */
+	public int step(int input) {
+		if (gameover) {
+			return TICK;
+		}
+		if (recording != null) {
+			recording.add(ticks, input, tickMillis);
+		}
+		ticks++;
+		resume();
+		// The player doesn't move in the tick that play resumes
+		boolean resumed = this.resumed;
+		this.resumed = false;
+		if (input >= UP && input <= RIGHT) {
+			player.dir = input;
+			stopped = false;
+		}
+		if (input == STOP) {
+			stopped = true;
+		}
+		int event = TICK;
+		if (!resumed) {
+			event = player.move();
+			if (event == CRASH) {
+				return crash();
+			}
+			if (event == LEVEL) {
+				return LEVEL;
+			}
+		}
+		moveEnemies();
+		time += tickMillis;
+		elapsed += tickMillis;
+		int x = percentageTime();
+		if (x < percentageTime) {
+			percentageTime = x;
+		}
+		if (crashed || percentageTime <= 0) {
+			return crash();
+		}
+		return event;
+	}
+
+	/**
+	 * Continues play after a CRASH or LEVEL event.
+	 * Returns false if there was nothing to resume.
+	 */
+	public boolean resume() {
+		if (pending == CRASH) {
+			pending = TICK;
+			resumed = true;
+			play(true);
+			return true;
+		}
+		if (pending == LEVEL) {
+			pending = TICK;
+			resumed = true;
+			level++;
+			play(false);
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Moves each enemy in turn, until one of them hits the player or his trail.
+	 * Each enemy tries the directions in BOUNCE order, and takes the first one that
+	 * keeps it on the board and in its own area (or the last one if none does).
+	 * With enough enemies, and more than one processor, the moves are worked out
+	 * in parallel by moveEnemiesParallel() instead, with exactly the same result.
+	 */
+	void moveEnemies() {
+		if (crashed) {
+			return;
+		}
+		// The board doesn't change while enemies move, so neither does what they can hit
+		byte playerCell = cells[player.row * cols + player.col];
+		boolean insideHits = playerCell == INSIDE;
+		boolean outsideHits = playerCell == OUTSIDE;
+		if (enemyCount >= parallelEnemies && POOL.getParallelism() > 1) {
+			moveEnemiesParallel(insideHits, outsideHits);
+			return;
+		}
+		for (int i = 0; i < enemyCount; i++) {
+			int oldIndex = enemyRow[i] * cols + enemyCol[i];
+			boolean hit = moveEnemy(i, enemyRow, enemyCol, enemyDir, insideHits, outsideHits);
+			vacate(oldIndex);
+			occupy(enemyRow[i] * cols + enemyCol[i]);
+			if (hit) {
+				crashed = true;
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Works out where enemy i moves to, and stores its new position and direction
+	 * at index i of the given arrays, which may be the enemy arrays themselves.
+	 * Returns true if it hits the player or his trail there.
+	 * Only reads the board and enemy i, so enemies can be moved in any order.
+	 */
+	private boolean moveEnemy(int i, int[] toRow, int[] toCol, int[] toDir, boolean insideHits, boolean outsideHits) {
+		int oldRow = enemyRow[i];
+		int oldCol = enemyCol[i];
+		int probe = 4 * enemyDir[i];
+		boolean in = enemyInside[i];
+		int row = oldRow;
+		int col = oldCol;
+		int dir = 0;
+		for (int j = 0; j < 4; j++) {
+			dir = BOUNCE[probe + j];
+			row = oldRow + ROW_STEP[dir];
+			col = oldCol + COL_STEP[dir];
+			if (row < 0 || row >= rows ||
+				col < 0 || col >= cols) {
+				continue;
+			}
+			byte cell = cells[row * cols + col];
+			if (in ? cell != OUTSIDE : cell == OUTSIDE) {
+				break;
+			}
+		}
+		toRow[i] = row;
+		toCol[i] = col;
+		toDir[i] = dir;
+		return (in ? insideHits : outsideHits) && row == player.row && col == player.col ||
+			in && cells[row * cols + col] == ACTIVE;
+	}
+
+	/**
+	 * Moves the enemies in two phases. In the read phase the enemies are split into bands
+	 * of rows, so that each worker reads one part of the board, and every move is worked out
+	 * into the next arrays. In the commit phase the moves are applied in enemy order up to
+	 * and including the first enemy that hit anything, just as if they had moved one by one.
+	 */
+	private void moveEnemiesParallel(boolean insideHits, boolean outsideHits) {
+		if (nextRow.length < enemyCount) {
+			nextRow = new int[enemyRow.length];
+			nextCol = new int[enemyRow.length];
+			nextDir = new int[enemyRow.length];
+			bandOrder = new int[enemyRow.length];
+		}
+		int bands = 4 * POOL.getParallelism();
+		if (bandStart.length != bands + 1) {
+			bandStart = new int[bands + 1];
+			bandHit = new int[bands];
+			bandTasks = new Band[bands];
+			for (int b = 0; b < bands; b++) {
+				bandTasks[b] = new Band(b);
+			}
+		}
+		// Sort the enemies by band, keeping them in enemy order within each band
+		int rowsPerBand = (rows + bands - 1) / bands;
+		Arrays.fill(bandStart, 0);
+		for (int i = 0; i < enemyCount; i++) {
+			bandStart[enemyRow[i] / rowsPerBand + 1]++;
+		}
+		for (int b = 0; b < bands; b++) {
+			bandStart[b + 1] += bandStart[b];
+		}
+		for (int i = 0; i < enemyCount; i++) {
+			int b = enemyRow[i] / rowsPerBand;
+			bandOrder[bandStart[b]++] = i;
+		}
+		// Filling in the order moved each band's start to the next band's
+		System.arraycopy(bandStart, 0, bandStart, 1, bands);
+		bandStart[0] = 0;
+		bandInsideHits = insideHits;
+		bandOutsideHits = outsideHits;
+		for (int b = 0; b < bands; b++) {
+			bandTasks[b].reinitialize();
+		}
+		// Runs one band on this thread, and the others in the pool
+		ForkJoinTask.invokeAll(bandTasks);
+		int hit = enemyCount;
+		for (int b = 0; b < bands; b++) {
+			if (bandHit[b] < hit) {
+				hit = bandHit[b];
+			}
+		}
+		int last = hit < enemyCount ? hit : enemyCount - 1;
+		for (int i = 0; i <= last; i++) {
+			vacate(enemyRow[i] * cols + enemyCol[i]);
+			occupy(nextRow[i] * cols + nextCol[i]);
+		}
+		System.arraycopy(nextRow, 0, enemyRow, 0, last + 1);
+		System.arraycopy(nextCol, 0, enemyCol, 0, last + 1);
+		System.arraycopy(nextDir, 0, enemyDir, 0, last + 1);
+		if (hit < enemyCount) {
+			crashed = true;
+		}
+	}
+
+	/**
+	 * The read phase of moveEnemiesParallel() for one band. The tasks are made once
+	 * and reinitialized for every tick, so moving in parallel makes no garbage.
+	 */
+	class Band extends RecursiveAction {
+		private int band;
+
+		Band(int band) {
+			this.band = band;
+		}
+
+		protected void compute() {
+			// Enemies are in enemy order within the band, so the first hit is the lowest
+			int hit = Integer.MAX_VALUE;
+			for (int k = bandStart[band]; k < bandStart[band + 1]; k++) {
+				int i = bandOrder[k];
+				if (moveEnemy(i, nextRow, nextCol, nextDir, bandInsideHits, bandOutsideHits) && hit == Integer.MAX_VALUE) {
+					hit = i;
+				}
+			}
+			bandHit[band] = hit;
+		}
+	}
+
+	/**
+	 * Once the player closes his trail, keeps the areas with enemies in them
+	 * and turns the trail and all other inside cells into outside cells.
+	 * The runs of inside cells on each row are labelled into 8-connected regions
+	 * with a union-find, noting the runs that hold an enemy, and a second pass
+	 * turns the runs of regions without an enemy outside.
+	 * Both passes only cover the rectangle the inside area started as, which it never leaves.
+	 * On very large boards the rectangle is split into strips of rows that are labelled
+	 * and swept in parallel, with the strips joined along their shared edges in between.
+	 */
+	void capture() {
+		if (enemyBits.length != (cells.length + 63) / 64) {
+			enemyBits = new long[(cells.length + 63) / 64];
+		}
+		int height = insideBottom - insideTop + 1;
+		int strips = 1;
+		if ((long) height * (insideRight - insideLeft + 1) >= parallelCells && POOL.getParallelism() > 1) {
+			strips = Math.min(4 * POOL.getParallelism(), height);
+		}
+		if (stripStart.length != strips + 1) {
+			stripStart = new int[strips + 1];
+			stripKept = new int[strips];
+			stripRuns = new int[strips][16];
+			stripRunCount = new int[strips];
+			stripParent = new int[strips][16];
+			stripRunTotal = new int[strips];
+			stripLastRow = new int[strips];
+			stripFirstRun = new int[strips];
+			stripBuffers = new int[strips][][];
+		}
+		// A row has at most one run for every two columns, as runs are apart
+		int width = insideRight - insideLeft + 1;
+		for (int k = 0; k < strips; k++) {
+			if (stripBuffers[k] == null || stripBuffers[k][0].length < width / 2 + 1) {
+				stripBuffers[k] = new int[4][width / 2 + 1];
+			}
+		}
+		for (int k = 0; k <= strips; k++) {
+			stripStart[k] = insideTop + (int) ((long) height * k / strips);
+		}
+		for (int i = 0; i < enemyCount; i++) {
+			int index = enemyRow[i] * cols + enemyCol[i];
+			if (cells[index] == INSIDE) {
+				enemyBits[index >>> 6] |= 1L << index;
+			}
+		}
+		int total;
+		if (strips == 1) {
+			label(0);
+			parent = stripParent[0];
+			total = stripRunTotal[0];
+		} else {
+			POOL.invoke(new Strips(0, strips, false));
+			total = 0;
+			for (int k = 0; k < strips; k++) {
+				stripFirstRun[k] = total;
+				total += stripRunTotal[k];
+			}
+			if (merged.length < total) {
+				merged = new int[Math.max(total, 2 * merged.length)];
+			}
+			for (int k = 0; k < strips; k++) {
+				int first = stripFirstRun[k];
+				int[] runParent = stripParent[k];
+				for (int i = 0; i < stripRunTotal[k]; i++) {
+					merged[first + i] = runParent[i] + first;
+				}
+			}
+			parent = merged;
+			int[][] buffers = stripBuffers[0];
+			for (int k = 1; k < strips; k++) {
+				int row = stripStart[k];
+				int above = runs(row - 1, buffers[0], buffers[1]);
+				int count = runs(row, buffers[2], buffers[3]);
+				join(parent, stripFirstRun[k - 1] + stripLastRow[k - 1], buffers[0], buffers[1], above,
+					stripFirstRun[k], buffers[2], buffers[3], count);
+			}
+		}
+		for (int i = 0; i < enemyCount; i++) {
+			int index = enemyRow[i] * cols + enemyCol[i];
+			enemyBits[index >>> 6] = 0;
+		}
+		int words = (total + 63) / 64;
+		if (keep.length < words) {
+			keep = new long[Math.max(words, 2 * keep.length)];
+		} else {
+			Arrays.fill(keep, 0, words, 0);
+		}
+		for (int k = 0; k < strips; k++) {
+			for (int j = 0; j < stripRunCount[k]; j++) {
+				int root = find(parent, stripFirstRun[k] + stripRuns[k][j]);
+				keep[root >>> 6] |= 1L << root;
+			}
+		}
+		int kept = 0;
+		if (strips == 1) {
+			kept = sweep(insideTop, insideBottom + 1, 0, true);
+		} else {
+			// Far too many changes to list one by one
+			allDirty = true;
+			POOL.invoke(new Strips(0, strips, true));
+			for (int k = 0; k < strips; k++) {
+				kept += stripKept[k];
+			}
+		}
+		counts[OUTSIDE] += counts[ACTIVE] + counts[INSIDE] - kept;
+		counts[INSIDE] = kept;
+		counts[ACTIVE] = 0;
+	}
+
+	/**
+	 * Labels the runs of inside cells in the given strip, joining each to the runs it touches
+	 * on the row above within the strip, and lists the runs that hold an enemy.
+	 * The strip's runs are numbered from 0 in the order they are found, row by row,
+	 * and each region ends up with the lowest number of its runs as its root.
+	 */
+	private void label(int strip) {
+		int[][] buffers = stripBuffers[strip];
+		int[] aboveStart = buffers[0];
+		int[] aboveEnd = buffers[1];
+		int[] start = buffers[2];
+		int[] end = buffers[3];
+		int[] runParent = stripParent[strip];
+		int next = 0;
+		int aboveFirst = 0;
+		int above = 0;
+		int[] found = stripRuns[strip];
+		int foundCount = 0;
+		for (int row = stripStart[strip]; row < stripStart[strip + 1]; row++) {
+			int line = row * cols;
+			int count = runs(row, start, end);
+			if (next + count > runParent.length) {
+				runParent = Arrays.copyOf(runParent, Math.max(next + count, 2 * runParent.length));
+			}
+			for (int r = 0; r < count; r++) {
+				runParent[next + r] = next + r;
+				if (any(enemyBits, line + start[r], line + end[r])) {
+					if (foundCount == found.length) {
+						found = Arrays.copyOf(found, 2 * foundCount);
+					}
+					found[foundCount++] = next + r;
+				}
+			}
+			join(runParent, aboveFirst, aboveStart, aboveEnd, above, next, start, end, count);
+			int[] swap = aboveStart;
+			aboveStart = start;
+			start = swap;
+			swap = aboveEnd;
+			aboveEnd = end;
+			end = swap;
+			above = count;
+			aboveFirst = next;
+			next += count;
+		}
+		stripParent[strip] = runParent;
+		stripRunTotal[strip] = next;
+		stripLastRow[strip] = aboveFirst;
+		stripRuns[strip] = found;
+		stripRunCount[strip] = foundCount;
+	}
+
+	/**
+	 * Finds the runs of inside cells on the given row, storing the first and last column of each,
+	 * and returns how many there are.
+	 */
+	private int runs(int row, int[] start, int[] end) {
+		int line = row * cols;
+		int count = 0;
+		int col = insideLeft;
+		while (col <= insideRight) {
+			if (cells[line + col] != INSIDE) {
+				col++;
+				continue;
+			}
+			start[count] = col;
+			while (col < insideRight && cells[line + col + 1] == INSIDE) {
+				col++;
+			}
+			end[count++] = col;
+			// The cell after a run is never inside
+			col += 2;
+		}
+		return count;
+	}
+
+	/**
+	 * Joins each run on a row, numbered from first, to the runs on the row above, numbered from aboveFirst,
+	 * that touch it, diagonally included.
+	 * Path halving in find() writes to parent, so strips are joined to each other one at a time.
+	 */
+	private static void join(int[] parent, int aboveFirst, int[] aboveStart, int[] aboveEnd, int above,
+		int first, int[] start, int[] end, int count) {
+		int p = 0;
+		for (int r = 0; r < count; r++) {
+			while (p < above && aboveEnd[p] < start[r] - 1) {
+				p++;
+			}
+			for (int q = p; q < above && aboveStart[q] <= end[r] + 1; q++) {
+				union(parent, first + r, aboveFirst + q);
+			}
+		}
+	}
+
+	private static void union(int[] parent, int a, int b) {
+		a = find(parent, a);
+		b = find(parent, b);
+		if (a < b) {
+			parent[b] = a;
+		} else if (b < a) {
+			parent[a] = b;
+		}
+	}
+
+	/**
+	 * The root of the given run's region, halving the path to it on the way.
+	 */
+	private static int find(int[] parent, int run) {
+		while (parent[run] != run) {
+			parent[run] = parent[parent[run]];
+			run = parent[run];
+		}
+		return run;
+	}
+
+	/**
+	 * True if any bit from index from to index to, inclusive, is set.
+	 */
+	private static boolean any(long[] bits, int from, int to) {
+		int w = from >>> 6;
+		int last = to >>> 6;
+		long word = bits[w] & (-1L << from);
+		while (w < last) {
+			if (word != 0) {
+				return true;
+			}
+			word = bits[++w];
+		}
+		return (word & (-1L >>> (63 - (to & 63)))) != 0;
+	}
+
+	/**
+	 * Turns the trail and the runs of regions not kept in the given rows into outside cells,
+	 * and returns the number of inside cells kept. The runs are found in the same order as
+	 * they were labelled, so are numbered from the given first run. Only reads parent,
+	 * so strips can be swept in parallel, but then the changed cells must not be tracked.
+	 */
+	private int sweep(int fromRow, int toRow, int run, boolean track) {
+		int kept = 0;
+		for (int row = fromRow; row < toRow; row++) {
+			int line = row * cols;
+			int col = insideLeft;
+			while (col <= insideRight) {
+				int index = line + col;
+				byte cell = cells[index];
+				if (cell == ACTIVE) {
+					cells[index] = OUTSIDE;
+					if (track) {
+						dirty(index);
+					}
+				}
+				if (cell != INSIDE) {
+					col++;
+					continue;
+				}
+				int start = col;
+				while (col < insideRight && cells[line + col + 1] == INSIDE) {
+					col++;
+				}
+				int root = run++;
+				while (parent[root] != root) {
+					root = parent[root];
+				}
+				if ((keep[root >>> 6] & (1L << root)) != 0) {
+					kept += col - start + 1;
+				} else {
+					Arrays.fill(cells, index, line + col + 1, (byte) OUTSIDE);
+					for (int i = index; track && i <= line + col; i++) {
+						dirty(i);
+					}
+				}
+				col++;
+			}
+		}
+		return kept;
+	}
+
+	/**
+	 * Labels or sweeps a range of strips for capture(), split in two until there is one strip each.
+	 */
+	class Strips extends RecursiveAction {
+		private int from;
+		private int to;
+		private boolean sweep;
+
+		Strips(int from, int to, boolean sweep) {
+			this.from = from;
+			this.to = to;
+			this.sweep = sweep;
+		}
+
+		protected void compute() {
+			if (to - from > 1) {
+				int middle = (from + to) / 2;
+				invokeAll(new Strips(from, middle, sweep), new Strips(middle, to, sweep));
+				return;
+			}
+			if (sweep) {
+				stripKept[from] = sweep(stripStart[from], stripStart[from + 1], stripFirstRun[from], false);
+			} else {
+				label(from);
+			}
+		}
+	}
+
+	void play(boolean preserve) {
+		if (preserve) {
+			for (int i = 0; i < cells.length; i++) {
+				if (cells[i] == ACTIVE) {
+					cells[i] = INSIDE;
+					dirty(i);
+				}
+			}
+			counts[INSIDE] += counts[ACTIVE];
+			counts[ACTIVE] = 0;
+		} else {
+			// The inside area is a rectangle, so fill it a row at a time
+			insideTop = Math.max(rows / 10, 3);
+			insideBottom = Math.min(9 * rows / 10, rows - 4);
+			insideLeft = Math.max(cols / 10, 3);
+			insideRight = Math.min(9 * cols / 10, cols - 4);
+			Arrays.fill(cells, (byte) OUTSIDE);
+			Arrays.fill(counts, 0);
+			allDirty = true;
+			counts[OUTSIDE] = cells.length;
+			target = 0;
+			for (int row = insideTop; row <= insideBottom; row++) {
+				Arrays.fill(cells, row * cols + insideLeft, row * cols + insideRight + 1, (byte) INSIDE);
+				target += insideRight - insideLeft + 1;
+			}
+			counts[OUTSIDE] -= target;
+			counts[INSIDE] = target;
+			int col = cols / 2 - DEFAULT_LIVES / 2;
+			for (int c = 0; c < DEFAULT_LIVES; c++) {
+				if (c < lives) {
+					set(col + c, SPARE);
+				} else {
+					set(col + c, BLANK);
+				}
+			}
+		}
+		player = new Player();
+		if (preserve) {
+			// Keep the inside enemies, in order
+			int kept = 0;
+			for (int i = 0; i < enemyCount; i++) {
+				if (enemyInside[i]) {
+					enemyRow[kept] = enemyRow[i];
+					enemyCol[kept] = enemyCol[i];
+					enemyDir[kept] = enemyDir[i];
+					enemyInside[kept] = true;
+					kept++;
+				} else {
+					vacate(enemyRow[i] * cols + enemyCol[i]);
+				}
+			}
+			enemyCount = kept;
+		} else {
+			enemyCount = 0;
+			Arrays.fill(occupancy, (byte) 0);
+			for (int i = 0; i < level; i++) {
+				spawn(true);
+			}
+		}
+		spawn(false);
+		percentageArea = percentageArea();
+		time = 0;
+		percentageTime = 100;
+		crashed = false;
+		if (!preserve) {
+			events.levelStart(level, enemyCount);
+		}
+	}
+
+	private int crash() {
+		crashed = false;
+		lives--;
+		percentageArea = percentageArea();
+		events.crash(level, lives, ticks);
+		if (lives > 0) {
+			pending = CRASH;
+			return CRASH;
+		}
+		total += percentageArea;
+		gameover = true;
+		if (recording != null) {
+			recording.end(ticks, hash(), total);
+		}
+		return GAMEOVER;
+	}
+
+	int percentageArea() {
+		if (target == 0) {
+			return 0;
+		}
+		assert countsValid() : "Cell counts out of step with the board";
+		int todo = counts[INSIDE] + counts[ACTIVE];
+		return (int) ((long) (target - todo) * 100 / target);
+	}
+
+	/**
+	 * Changes the state of a cell, keeping the counts up to date.
+	 * All cell changes must go through here or adjust the counts themselves.
+	 */
+	private void set(int index, int state) {
+		if (cells[index] == state) {
+			return;
+		}
+		counts[cells[index]]--;
+		counts[state]++;
+		cells[index] = (byte) state;
+		dirty(index);
+	}
+
+	private void dirty(int index) {
+		if (allDirty) {
+			return;
+		}
+		long bit = 1L << index;
+		if ((dirtyBits[index >>> 6] & bit) != 0) {
+			return;
+		}
+		if (dirtyCount == dirty.length) {
+			allDirty = true;
+			return;
+		}
+		dirtyBits[index >>> 6] |= bit;
+		dirty[dirtyCount++] = index;
+	}
+
+	/**
+	 * Sets a single cell, for setting up test positions.
+	 */
+	void setCell(int row, int col, int state) {
+		set(row * cols + col, state);
+	}
+
+	/**
+	 * Adds an enemy at a random free position, for setting up test positions.
+	 */
+	void addEnemy(boolean inside) {
+		spawn(inside);
+	}
+
+	/**
+	 * Marks every cell as changed, for a full redraw.
+	 */
+	void invalidate() {
+		allDirty = true;
+	}
+
+	/**
+	 * Recounts the whole board, for checking the counts when assertions are enabled (-ea).
+	 */
+	private boolean countsValid() {
+		int[] actual = new int[counts.length];
+		for (int i = 0; i < cells.length; i++) {
+			actual[cells[i]]++;
+		}
+		return Arrays.equals(actual, counts);
+	}
+
+	private int percentageTime() {
+		int lapsedTime = (int) (time / 1000);
+		int totalTime = 60 * level;
+		int x = 100 * (totalTime - lapsedTime) / totalTime;
+		x = x < 0 ? 0 : x;
+		int numEnemies = 10 - x / 10;
+		if (enemyCount - level < numEnemies) {
+			spawn(false);
+		}
+		return x;
+	}
+
+	public int getRows() {
+		return rows;
+	}
+
+	public int getCols() {
+		return cols;
+	}
+
+	public int getCell(int row, int col) {
+		return cells[row * cols + col];
+	}
+
+	/**
+	 * Copies every cell, row by row, into the given array, which must hold rows * cols cells.
+	 */
+	void copyCells(byte[] into) {
+		System.arraycopy(cells, 0, into, 0, rows * cols);
+	}
+
+	/**
+	 * True if every cell must be treated as changed since the last clearDirty(),
+	 * in which case getDirtyCount() and getDirty() don't list them.
+	 */
+	public boolean isAllDirty() {
+		return allDirty;
+	}
+
+	/**
+	 * The number of cells changed since the last clearDirty().
+	 */
+	public int getDirtyCount() {
+		return dirtyCount;
+	}
+
+	/**
+	 * The index (row * cols + col) of the i'th changed cell.
+	 */
+	public int getDirty(int i) {
+		return dirty[i];
+	}
+
+	public void clearDirty() {
+		for (int i = 0; i < dirtyCount; i++) {
+			dirtyBits[dirty[i] >>> 6] = 0;
+		}
+		dirtyCount = 0;
+		allDirty = false;
+	}
+
+	/**
+	 * The number of cells currently in the given state.
+	 */
+	public int getCount(int state) {
+		return counts[state];
+	}
+
+	public int getLevel() {
+		return level;
+	}
+
+	public int getTotal() {
+		return total;
+	}
+
+	/**
+	 * The score as shown to the player: the running total plus the area captured in the current level.
+	 */
+	public int getScore() {
+		if (gameover || pending == LEVEL) {
+			return total;
+		}
+		return total + percentageArea;
+	}
+
+	public int getLives() {
+		return lives;
+	}
+
+	public int getPercentageArea() {
+		return percentageArea;
+	}
+
+	public int getPercentageTime() {
+		return percentageTime;
+	}
+
+	public int getTickMillis() {
+		return tickMillis;
+	}
+
+	public void setTickMillis(int tickMillis) {
+		this.tickMillis = tickMillis;
+	}
+
+	public boolean isGameOver() {
+		return gameover;
+	}
+
+	public long getSeed() {
+		return seed;
+	}
+
+	/**
+	 * How long the last capture took, in nanoseconds.
+	 */
+	public long getCaptureNanos() {
+		return captureNanos;
+	}
+
+	/**
+	 * The game time since the game started, in milliseconds.
+	 */
+	public long getElapsed() {
+		return elapsed;
+	}
+
+	/**
+	 * The number of ticks since the game started.
+	 */
+	public long getTicks() {
+		return ticks;
+	}
+
+	/**
+	 * Records the input of every game started from now on, or stops recording if null.
+	 */
+	public void setRecording(Recording recording) {
+		this.recording = recording;
+	}
+
+	/**
+	 * Where captures, crashes and level starts are reported from now on.
+	 */
+	public void setEvents(GameEvents events) {
+		this.events = events;
+	}
+
+	/**
+	 * A hash of the board, pieces and score, for checking that two games ended the same.
+	 */
+	public long hash() {
+		// 64-bit FNV-1a
+		long hash = 0xcbf29ce484222325L;
+		for (int i = 0; i < cells.length; i++) {
+			hash = (hash ^ cells[i]) * 0x100000001b3L;
+		}
+		hash = (hash ^ player.row) * 0x100000001b3L;
+		hash = (hash ^ player.col) * 0x100000001b3L;
+		for (int i = 0; i < enemyCount; i++) {
+			hash = (hash ^ enemyRow[i]) * 0x100000001b3L;
+			hash = (hash ^ enemyCol[i]) * 0x100000001b3L;
+			hash = (hash ^ enemyDir[i]) * 0x100000001b3L;
+		}
+		hash = (hash ^ level) * 0x100000001b3L;
+		hash = (hash ^ total) * 0x100000001b3L;
+		hash = (hash ^ lives) * 0x100000001b3L;
+		return hash;
+	}
+
+	public int getPlayerRow() {
+		return player.row;
+	}
+
+	public int getPlayerCol() {
+		return player.col;
+	}
+
+	public int getPlayerDir() {
+		return player.dir;
+	}
+
+	/**
+	 * Counts an enemy onto the given cell. A cell that has had CROWDED enemies on it at once
+	 * stays at CROWDED until the next level, which only matters to spawn(), as an occupied cell.
+	 */
+	private void occupy(int index) {
+		int n = occupancy[index] & 0xff;
+		if (n < CROWDED) {
+			occupancy[index] = (byte) (n + 1);
+		}
+	}
+
+	private void vacate(int index) {
+		int n = occupancy[index] & 0xff;
+		if (n < CROWDED) {
+			occupancy[index] = (byte) (n - 1);
+		}
+	}
+
+	/**
+	 * True while the player is drawing a trail through the inside area.
+	 */
+	public boolean isPlayerInside() {
+		return player.inside;
+	}
+
+	public boolean isStopped() {
+		return stopped;
+	}
+
+	/**
+	 * True if play has just resumed, so the player won't move in the next step().
+	 */
+	public boolean isResuming() {
+		return resumed;
+	}
+
+	public int getEnemyCount() {
+		return enemyCount;
+	}
+
+	public int getEnemyRow(int i) {
+		return enemyRow[i];
+	}
+
+	public int getEnemyCol(int i) {
+		return enemyCol[i];
+	}
+
+	public boolean isEnemyInside(int i) {
+		return enemyInside[i];
+	}
+
+	public int getEnemyDir(int i) {
+		return enemyDir[i];
+	}
+
+	/**
+	 * The number of inside cells when the level started, from which the captured area is worked out.
+	 */
+	public int getTarget() {
+		return target;
+	}
+
+	class Player {
+		int row;
+		int col;
+		int dir = UP;
+		boolean inside;
+
+		public Player() {
+			stopped = true;
+			// Spare lives are only ever shown in the top row
+			for (int col = cols - 1; col >= 0; col--) {
+				if (cells[col] == SPARE) {
+					set(col, BLANK);
+					this.col = col;
+					break;
+				}
+			}
+		}
+
+		int move() {
+			if (stopped) {
+				return TICK;
+			}
+			int oldRow = row;
+			int oldCol = col;
+			if (dir == UP) {
+				row = oldRow > 0 ? oldRow - 1 : oldRow;
+			}
+			if (dir == DOWN) {
+				row = oldRow < rows - 1 ? oldRow + 1 : oldRow;
+			}
+			if (dir == LEFT) {
+				col = oldCol > 0 ? oldCol - 1 : oldCol;
+			}
+			if (dir == RIGHT) {
+				col = oldCol < cols - 1 ? oldCol + 1 : oldCol;
+			}
+			int index = row * cols + col;
+			if (cells[index] == ACTIVE) {
+				// Crashed into himself
+				return CRASH;
+			}
+			if (cells[index] == INSIDE) {
+				inside = true;
+				set(index, ACTIVE);
+			}
+			if (inside && cells[index] == OUTSIDE) {
+				percentageTime = percentageTime();
+				stopped = true;
+				inside = false;
+				Object event = events.beginCapture();
+				int outside = counts[OUTSIDE];
+				long start = System.nanoTime();
+				capture();
+				captureNanos = System.nanoTime() - start;
+				if (event != null) {
+					int kept = 0;
+					for (int i = 0; i < enemyCount; i++) {
+						if (enemyInside[i]) {
+							kept++;
+						}
+					}
+					events.endCapture(event, counts[OUTSIDE] - outside, kept);
+				}
+				percentageArea = percentageArea();
+				// Target captured area is indirectly proportional to level.
+				// ie. Level 1 = 90%, Level 2 = 85%, Level 3 = 80%, ... Level 9 = 50%
+				int target = 100 - 5 * (level + 1);
+				if (percentageArea >= target) {
+					total += percentageArea + percentageTime;
+					pending = LEVEL;
+					return LEVEL;
+				}
+				return CAPTURE;
+			}
+			return TICK;
+		}
+	}
+
+	/**
+	 * Adds an enemy in a random direction at a random position in its area,
+	 * which for outside enemies is one of the corners.
+	 */
+	private void spawn(boolean inside) {
+		if (enemyCount == enemyRow.length) {
+			int size = 2 * enemyCount;
+			enemyRow = Arrays.copyOf(enemyRow, size);
+			enemyCol = Arrays.copyOf(enemyCol, size);
+			enemyDir = Arrays.copyOf(enemyDir, size);
+			enemyInside = Arrays.copyOf(enemyInside, size);
+		}
+		int dir = random.nextInt(4);
+		int row;
+		int col;
+		// Stay clear of other enemies, unless there is hardly any room left
+		int tries = 0;
+		while (true) {
+			row = random.nextInt(rows);
+			col = random.nextInt(cols);
+			if (!inside &&
+				((row > rows / 10 && row < 9 * rows / 10) ||
+				(col > cols / 10 && col < 9 * cols / 10))) {
+				continue;
+			}
+			int index = row * cols + col;
+			if (occupancy[index] != 0 && tries++ < 100) {
+				continue;
+			}
+			if (inside && cells[index] == INSIDE) {
+				break;
+			}
+			if (!inside && cells[index] == OUTSIDE) {
+				break;
+			}
+		}
+		occupy(row * cols + col);
+		enemyRow[enemyCount] = row;
+		enemyCol[enemyCount] = col;
+		enemyDir[enemyCount] = dir;
+		enemyInside[enemyCount] = inside;
+		enemyCount++;
+	}
+}
@@ -0,0 +1,441 @@
+package johansteyn;
+
+import java.util.Arrays;
+
+/**
+ * A compact copy of a game position for look-ahead search.
+ * The board is kept as one bitset per cell state, with each row starting on a new word,
+ * and the player and enemies as primitive fields and arrays,
+ * so that copyInto() costs little more than copying the bitsets.
+ * Moves follow the same rules as GameModel, but only as far as the next crash:
+ * there are no lives, levels, time limit or new enemies.
+ */
+public class GameState {
+	private int rows;
+	private int cols;
+	private int wordsPerRow;
+	private long[] inside = new long[0];  // INSIDE cells
+	private long[] active = new long[0];  // ACTIVE cells, the player's trail
+	private long[] blocked = new long[0]; // SPARE and BLANK cells, which only the player may enter
+	private long[] fixed = new long[0];   // work area for capture()
+	private byte[] cells = new byte[0];   // the cells taken by copy(), for unpack()
+	private int[] stack = new int[256];   // work buffer for fix()
+	private int target;
+	private int todo;                     // INSIDE and ACTIVE cells
+	private long captured;                // cells captured since load()
+	private long ticks;                   // tick number, as GameModel.getTicks()
+	private int playerRow;
+	private int playerCol;
+	private int playerDir;
+	private boolean playerInside;
+	private boolean stopped;
+	private boolean resuming;             // the player doesn't move in the next step()
+	private boolean crashed;
+	private int enemyCount;
+	private int[] enemyRow = new int[0];
+	private int[] enemyCol = new int[0];
+	private int[] enemyDir = new int[0];
+	private boolean[] enemyInside = new boolean[0];
+
+	/**
+	 * Copies the position of the given game, reusing this state's arrays where they are large enough.
+	 */
+	public void load(GameModel model) {
+		copy(model);
+		unpack();
+	}
+
+	/**
+	 * Copies the position of the given game with its cells as they are, one byte each,
+	 * leaving unpack() to turn them into bitsets. This keeps the copy cheap for the thread
+	 * that runs the game, and the rest of the work to the thread that searches the position.
+	 */
+	void copy(GameModel model) {
+		resize(model.getRows(), model.getCols(), model.getEnemyCount());
+		model.copyCells(cells);
+		target = model.getTarget();
+		todo = model.getCount(GameModel.INSIDE) + model.getCount(GameModel.ACTIVE);
+		captured = 0;
+		ticks = model.getTicks();
+		playerRow = model.getPlayerRow();
+		playerCol = model.getPlayerCol();
+		playerDir = model.getPlayerDir();
+		playerInside = model.isPlayerInside();
+		stopped = model.isStopped();
+		resuming = model.isResuming();
+		crashed = false;
+		for (int i = 0; i < enemyCount; i++) {
+			enemyRow[i] = model.getEnemyRow(i);
+			enemyCol[i] = model.getEnemyCol(i);
+			enemyDir[i] = model.getEnemyDir(i);
+			enemyInside[i] = model.isEnemyInside(i);
+		}
+	}
+
+	/**
+	 * Builds the bitsets from the cells taken by copy(), a whole word at a time.
+	 */
+	void unpack() {
+		int w = 0;
+		for (int row = 0; row < rows; row++) {
+			int base = row * cols;
+			for (int from = 0; from < cols; from += 64) {
+				int to = Math.min(from + 64, cols);
+				long in = 0;
+				long act = 0;
+				long block = 0;
+				for (int col = from; col < to; col++) {
+					int cell = cells[base + col];
+					if (cell == GameModel.INSIDE) {
+						in |= 1L << col;
+					} else if (cell == GameModel.ACTIVE) {
+						act |= 1L << col;
+					} else if (cell == GameModel.SPARE || cell == GameModel.BLANK) {
+						block |= 1L << col;
+					}
+				}
+				inside[w] = in;
+				active[w] = act;
+				blocked[w] = block;
+				w++;
+			}
+		}
+	}
+
+	/**
+	 * Makes the given state an exact copy of this one.
+	 */
+	public void copyInto(GameState target) {
+		target.resize(rows, cols, enemyCount);
+		System.arraycopy(inside, 0, target.inside, 0, inside.length);
+		System.arraycopy(active, 0, target.active, 0, active.length);
+		System.arraycopy(blocked, 0, target.blocked, 0, blocked.length);
+		System.arraycopy(enemyRow, 0, target.enemyRow, 0, enemyCount);
+		System.arraycopy(enemyCol, 0, target.enemyCol, 0, enemyCount);
+		System.arraycopy(enemyDir, 0, target.enemyDir, 0, enemyCount);
+		System.arraycopy(enemyInside, 0, target.enemyInside, 0, enemyCount);
+		target.target = this.target;
+		target.todo = todo;
+		target.captured = captured;
+		target.ticks = ticks;
+		target.playerRow = playerRow;
+		target.playerCol = playerCol;
+		target.playerDir = playerDir;
+		target.playerInside = playerInside;
+		target.stopped = stopped;
+		target.resuming = resuming;
+		target.crashed = crashed;
+	}
+
+	private void resize(int rows, int cols, int enemyCount) {
+		this.rows = rows;
+		this.cols = cols;
+		this.enemyCount = enemyCount;
+		wordsPerRow = (cols + 63) >>> 6;
+		int words = rows * wordsPerRow;
+		if (inside.length != words) {
+			inside = new long[words];
+			active = new long[words];
+			blocked = new long[words];
+			fixed = new long[words];
+		}
+		if (cells.length != rows * cols) {
+			cells = new byte[rows * cols];
+		}
+		if (enemyRow.length < enemyCount) {
+			enemyRow = new int[enemyCount];
+			enemyCol = new int[enemyCount];
+			enemyDir = new int[enemyCount];
+			enemyInside = new boolean[enemyCount];
+		}
+	}
+
+	/**
+	 * Advances one tick with the given input, as GameModel.step() does.
+	 * Returns GameModel.TICK, CAPTURE or CRASH. Once crashed, the state no longer changes.
+	 */
+	public int step(int input) {
+		if (crashed) {
+			return GameModel.CRASH;
+		}
+		ticks++;
+		if (input >= GameModel.UP && input <= GameModel.RIGHT) {
+			playerDir = input;
+			stopped = false;
+		}
+		if (input == GameModel.STOP) {
+			stopped = true;
+		}
+		int event = GameModel.TICK;
+		// The player doesn't move in the tick that play resumes
+		if (resuming) {
+			resuming = false;
+		} else {
+			event = movePlayer();
+			if (event == GameModel.CRASH) {
+				crashed = true;
+				return event;
+			}
+		}
+		for (int i = 0; i < enemyCount; i++) {
+			if (moveEnemy(i)) {
+				crashed = true;
+				return GameModel.CRASH;
+			}
+		}
+		return event;
+	}
+
+	private int movePlayer() {
+		if (stopped) {
+			return GameModel.TICK;
+		}
+		int row = playerRow;
+		int col = playerCol;
+		if (playerDir == GameModel.UP && row > 0) {
+			row--;
+		}
+		if (playerDir == GameModel.DOWN && row < rows - 1) {
+			row++;
+		}
+		if (playerDir == GameModel.LEFT && col > 0) {
+			col--;
+		}
+		if (playerDir == GameModel.RIGHT && col < cols - 1) {
+			col++;
+		}
+		playerRow = row;
+		playerCol = col;
+		if (get(active, row, col)) {
+			return GameModel.CRASH;
+		}
+		if (get(inside, row, col)) {
+			playerInside = true;
+			clear(inside, row, col);
+			set(active, row, col);
+		}
+		if (playerInside && isOutside(row, col)) {
+			stopped = true;
+			playerInside = false;
+			capture();
+			return GameModel.CAPTURE;
+		}
+		return GameModel.TICK;
+	}
+
+	private boolean moveEnemy(int i) {
+		int oldRow = enemyRow[i];
+		int oldCol = enemyCol[i];
+		int oldDir = enemyDir[i];
+		boolean in = enemyInside[i];
+		int row = oldRow;
+		int col = oldCol;
+		int dir = oldDir;
+		for (int j = 0; j < 4; j++) {
+			dir = GameModel.BOUNCE[4 * oldDir + j];
+			row = oldRow + GameModel.ROW_STEP[dir];
+			col = oldCol + GameModel.COL_STEP[dir];
+			if (row < 0 || row >= rows ||
+				col < 0 || col >= cols) {
+				continue;
+			}
+			if (in && !isOutside(row, col)) {
+				break;
+			}
+			if (!in && isOutside(row, col)) {
+				break;
+			}
+		}
+		enemyRow[i] = row;
+		enemyCol[i] = col;
+		enemyDir[i] = dir;
+		boolean hit = false;
+		if (in && get(inside, playerRow, playerCol) ||
+			!in && isOutside(playerRow, playerCol)) {
+			if (row == playerRow && col == playerCol) {
+				hit = true;
+			}
+		}
+		if (in && get(active, row, col)) {
+			hit = true;
+		}
+		return hit;
+	}
+
+	/**
+	 * Keeps the inside areas holding enemies and turns the trail and all other inside cells outside,
+	 * as GameModel.capture() does.
+	 */
+	private void capture() {
+		Arrays.fill(fixed, 0);
+		for (int i = 0; i < enemyCount; i++) {
+			fix(enemyRow[i], enemyCol[i]);
+		}
+		int kept = 0;
+		for (int w = 0; w < inside.length; w++) {
+			inside[w] = fixed[w];
+			active[w] = 0;
+			kept += Long.bitCount(fixed[w]);
+		}
+		captured += todo - kept;
+		todo = kept;
+	}
+
+	/**
+	 * Marks the 8-connected region of inside cells around the given cell in fixed,
+	 * a whole span at a time.
+	 */
+	private void fix(int row, int col) {
+		if (!isFree(row, col)) {
+			return;
+		}
+		int sp = 0;
+		stack[sp++] = row;
+		stack[sp++] = col;
+		while (sp > 0) {
+			col = stack[--sp];
+			row = stack[--sp];
+			if (!isFree(row, col)) {
+				continue;
+			}
+			int left = col;
+			while (left > 0 && isFree(row, left - 1)) {
+				left--;
+			}
+			int right = col;
+			while (right < cols - 1 && isFree(row, right + 1)) {
+				right++;
+			}
+			for (int c = left; c <= right; c++) {
+				set(fixed, row, c);
+			}
+			int from = left > 0 ? left - 1 : left;
+			int to = right < cols - 1 ? right + 1 : right;
+			for (int r = row - 1; r <= row + 1; r += 2) {
+				if (r < 0 || r >= rows) {
+					continue;
+				}
+				boolean span = false;
+				for (int c = from; c <= to; c++) {
+					if (!isFree(r, c)) {
+						span = false;
+						continue;
+					}
+					if (span) {
+						continue;
+					}
+					span = true;
+					if (sp + 2 > stack.length) {
+						int[] newStack = new int[2 * stack.length];
+						System.arraycopy(stack, 0, newStack, 0, sp);
+						stack = newStack;
+					}
+					stack[sp++] = r;
+					stack[sp++] = c;
+				}
+			}
+		}
+	}
+
+	/**
+	 * An inside cell not yet marked by fix().
+	 */
+	private boolean isFree(int row, int col) {
+		if (row < 0 || row >= rows || col < 0 || col >= cols) {
+			return false;
+		}
+		return get(inside, row, col) && !get(fixed, row, col);
+	}
+
+	private boolean isOutside(int row, int col) {
+		int w = row * wordsPerRow + (col >>> 6);
+		return ((inside[w] | active[w] | blocked[w]) & (1L << col)) == 0;
+	}
+
+	private boolean get(long[] bits, int row, int col) {
+		return (bits[row * wordsPerRow + (col >>> 6)] & (1L << col)) != 0;
+	}
+
+	private void set(long[] bits, int row, int col) {
+		bits[row * wordsPerRow + (col >>> 6)] |= 1L << col;
+	}
+
+	private void clear(long[] bits, int row, int col) {
+		bits[row * wordsPerRow + (col >>> 6)] &= ~(1L << col);
+	}
+
+	public int getRows() {
+		return rows;
+	}
+
+	public int getCols() {
+		return cols;
+	}
+
+	public boolean isCrashed() {
+		return crashed;
+	}
+
+	/**
+	 * The number of cells captured since the position was loaded.
+	 */
+	public long getCaptured() {
+		return captured;
+	}
+
+	/**
+	 * The percentage of the level's area captured, as GameModel.getPercentageArea().
+	 */
+	public int getPercentageArea() {
+		if (target == 0) {
+			return 0;
+		}
+		return (int) ((long) (target - todo) * 100 / target);
+	}
+
+	public int getPlayerRow() {
+		return playerRow;
+	}
+
+	public int getPlayerCol() {
+		return playerCol;
+	}
+
+	public int getPlayerDir() {
+		return playerDir;
+	}
+
+	/**
+	 * The number of inside cells when the level started.
+	 */
+	public int getTarget() {
+		return target;
+	}
+
+	/**
+	 * The tick number of the position, counted from the start of the game it was loaded from.
+	 */
+	public long getTicks() {
+		return ticks;
+	}
+
+	public boolean isPlayerInside() {
+		return playerInside;
+	}
+
+	public boolean isStopped() {
+		return stopped;
+	}
+
+	public int getEnemyCount() {
+		return enemyCount;
+	}
+
+	public int getEnemyRow(int i) {
+		return enemyRow[i];
+	}
+
+	public int getEnemyCol(int i) {
+		return enemyCol[i];
+	}
+}
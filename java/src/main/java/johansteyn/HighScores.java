@@ -0,0 +1,249 @@
+package johansteyn;
+
+import java.io.*;
+import java.util.Arrays;
+
+/**
+ * The best scores, highest first, kept in memory for the high score screen,
+ * with every game also added to a Leaderboard in the background.
+ * The scores are read from the leaderboard once, when they are created. New games are added
+ * to the leaderboard by a background thread, which waits WRITE_DELAY milliseconds first
+ * so that games in quick succession are added, and forced out to disk, together.
+ * The same thread saves the recording of the last game, when games are being recorded.
+ */
+public class HighScores extends Thread {
+	public static final int MAX = 10;
+	private static final int WRITE_DELAY = 500;
+	private Leaderboard leaderboard; // null if it couldn't be opened
+	private int[] scores = new int[MAX];
+	private int count;
+	// Games not yet added to the leaderboard
+	private int pending;
+	private int[] pendingScores = new int[16];
+	private int[] pendingLevels = new int[16];
+	private long[] pendingTimestamps = new long[16];
+	private long[] pendingDurations = new long[16];
+	private volatile GameEvents events = GameEvents.NONE;
+	// The last recording not yet saved
+	private Recording recording;
+	private File recordingFile;
+	private Object recordingLock = new Object();
+	private Thread shutdownHook;
+	private volatile boolean closed;
+
+	/**
+	 * Reads the best scores from the given leaderboard, which may be null to keep the scores in memory only.
+	 * A new, empty leaderboard takes the scores from the old high score text file, if there is one.
+	 */
+	public HighScores(Leaderboard leaderboard, File oldFile) {
+		super("HighScores");
+		setDaemon(true);
+		this.leaderboard = leaderboard;
+		if (leaderboard != null && leaderboard.size() == 0) {
+			importScores(oldFile);
+		}
+		if (leaderboard != null) {
+			// Best first, so the games that scored nothing come last
+			for (int i = 0; i < leaderboard.size() && i < MAX && leaderboard.getScore(i) > 0; i++) {
+				scores[count++] = leaderboard.getScore(i);
+			}
+		}
+		// Don't lose the last games when the game exits during the delay
+		shutdownHook = new Thread() {
+			public void run() {
+				flush();
+			}
+		};
+		Runtime.getRuntime().addShutdownHook(shutdownHook);
+		start();
+	}
+
+	/**
+	 * Adds the scores from a file of one score per line, as high scores used to be kept.
+	 * Their level, time and duration aren't known, so are left 0.
+	 */
+	private void importScores(File file) {
+		try {
+			BufferedReader br = new BufferedReader(new FileReader(file));
+			try {
+				while (true) {
+					String s = br.readLine();
+					if (s == null || s.length() <= 0) {
+						break;
+					}
+					try {
+						leaderboard.add(Integer.parseInt(s.trim()), 0, 0, 0);
+					} catch (NumberFormatException nfe) {
+					}
+				}
+			} finally {
+				br.close();
+			}
+		} catch (IOException ioe) {
+		}
+	}
+
+	/**
+	 * Adds a game that just ended, and returns the position of its score, from 0 for the best,
+	 * or -1 if it isn't one of the best MAX. A score of 0 is never one of the best.
+	 * The game is added to the leaderboard in the background, whatever its score.
+	 */
+	public synchronized int add(int score, int level, long duration) {
+		if (pending == pendingScores.length) {
+			int size = 2 * pending;
+			pendingScores = Arrays.copyOf(pendingScores, size);
+			pendingLevels = Arrays.copyOf(pendingLevels, size);
+			pendingTimestamps = Arrays.copyOf(pendingTimestamps, size);
+			pendingDurations = Arrays.copyOf(pendingDurations, size);
+		}
+		pendingScores[pending] = score;
+		pendingLevels[pending] = level;
+		pendingTimestamps[pending] = System.currentTimeMillis();
+		pendingDurations[pending] = duration;
+		pending++;
+		notifyAll();
+		return insert(score);
+	}
+
+	private int insert(int score) {
+		if (score <= 0) {
+			return -1;
+		}
+		int position = 0;
+		while (position < count && scores[position] > score) {
+			position++;
+		}
+		if (position >= MAX) {
+			return -1;
+		}
+		int moved = Math.min(count, MAX - 1) - position;
+		System.arraycopy(scores, position, scores, position + 1, moved);
+		scores[position] = score;
+		count = Math.min(count + 1, MAX);
+		return position;
+	}
+
+	public synchronized int getCount() {
+		return count;
+	}
+
+	public synchronized int getScore(int i) {
+		return scores[i];
+	}
+
+	public void run() {
+		while (!closed) {
+			synchronized (this) {
+				while (pending == 0 && recording == null && !closed) {
+					try {
+						wait();
+					} catch (InterruptedException ie) {
+					}
+				}
+			}
+			try {
+				Thread.sleep(WRITE_DELAY);
+			} catch (InterruptedException ie) {
+			}
+			flush();
+		}
+	}
+
+	/**
+	 * Saves a recording to the given file in the background, instead of any still waiting to be saved.
+	 * The recording must not change after this, so should be a copy of one still recording.
+	 */
+	public synchronized void save(Recording recording, File file) {
+		this.recording = recording;
+		recordingFile = file;
+		notifyAll();
+	}
+
+	/**
+	 * Where adding games to the leaderboard is reported from now on.
+	 */
+	public void setEvents(GameEvents events) {
+		this.events = events;
+	}
+
+	/**
+	 * Adds the games not yet added to the leaderboard, and saves the last recording, right away.
+	 */
+	public void flush() {
+		// Held while saving, so a flush on exit waits for one already saving
+		synchronized (recordingLock) {
+			Recording recording;
+			File file;
+			synchronized (this) {
+				recording = this.recording;
+				file = recordingFile;
+				this.recording = null;
+			}
+			if (recording != null) {
+				try {
+					recording.save(file);
+				} catch (IOException ioe) {
+					ioe.printStackTrace();
+				}
+			}
+		}
+		if (leaderboard == null) {
+			synchronized (this) {
+				pending = 0;
+			}
+			return;
+		}
+		// One flush at a time, so games are added in the order they ended
+		synchronized (leaderboard) {
+			int n;
+			int[] scores;
+			int[] levels;
+			long[] timestamps;
+			long[] durations;
+			synchronized (this) {
+				n = pending;
+				scores = pendingScores.clone();
+				levels = pendingLevels.clone();
+				timestamps = pendingTimestamps.clone();
+				durations = pendingDurations.clone();
+				pending = 0;
+			}
+			if (n == 0) {
+				return;
+			}
+			Object save = events.beginHighScoreSave();
+			try {
+				for (int i = 0; i < n; i++) {
+					leaderboard.add(scores[i], levels[i], timestamps[i], durations[i]);
+				}
+				leaderboard.force();
+				if (save != null) {
+					events.endHighScoreSave(save, n);
+				}
+			} catch (IOException ioe) {
+				ioe.printStackTrace();
+			}
+		}
+	}
+
+	/**
+	 * Stops the background thread, then adds the games still waiting and saves the last recording
+	 * before closing the leaderboard.
+	 */
+	public void close() throws InterruptedException {
+		synchronized (this) {
+			closed = true;
+			notifyAll();
+		}
+		join();
+		flush();
+		Runtime.getRuntime().removeShutdownHook(shutdownHook);
+		if (leaderboard != null) {
+			try {
+				leaderboard.close();
+			} catch (IOException ioe) {
+				ioe.printStackTrace();
+			}
+		}
+	}
+}
@@ -0,0 +1,56 @@
+package johansteyn;
+
+import java.util.Arrays;
+
+/**
+ * Counts of values in buckets of equal width, for percentiles without keeping the values.
+ * Values past the last bucket are counted in it.
+ * Only one thread may record into a histogram, but any may read it, and see counts that are a little out of date.
+ */
+class Histogram {
+	private int width;  // of a bucket
+	private long[] counts;
+	private long count;
+	private long max;
+
+	Histogram(int buckets, int width) {
+		this.width = width;
+		counts = new long[buckets];
+	}
+
+	void record(long value) {
+		int bucket = (int) Math.min(Math.max(value, 0) / width, counts.length - 1);
+		counts[bucket]++;
+		count++;
+		max = Math.max(max, value);
+	}
+
+	long getCount() {
+		return count;
+	}
+
+	long getMax() {
+		return max;
+	}
+
+	/**
+	 * The value below which the given percentage of the values fall, to within a bucket.
+	 */
+	long getPercentile(double percent) {
+		long wanted = (long) Math.ceil(count * percent / 100);
+		long seen = 0;
+		for (int i = 0; i < counts.length; i++) {
+			seen += counts[i];
+			if (seen >= wanted && seen > 0) {
+				return Math.min((long) (i + 1) * width, max);
+			}
+		}
+		return max;
+	}
+
+	void reset() {
+		Arrays.fill(counts, 0);
+		count = 0;
+		max = 0;
+	}
+}
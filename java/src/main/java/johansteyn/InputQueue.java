@@ -0,0 +1,70 @@
+package johansteyn;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Key presses on their way from the event thread to the Animator, in a fixed size ring buffer
+ * for one producer and one consumer that never locks or waits.
+ * Each event is an int, along with when it happened, as from KeyEvent.getWhen().
+ * The producer fills in a slot before moving the tail past it, with an ordered write,
+ * so the consumer never sees a slot before it is filled in, and the consumer likewise
+ * reads a slot before moving the head past it, so the producer never refills it too soon.
+ */
+class InputQueue {
+	private int mask;
+	private int[] events;
+	private long[] whens;
+	private AtomicLong head = new AtomicLong(); // next slot to take, only moved by the consumer
+	private AtomicLong tail = new AtomicLong(); // next slot to fill, only moved by the producer
+	private int event;                          // the last one taken
+	private long when;
+
+	/**
+	 * The capacity is rounded up to a power of two.
+	 */
+	InputQueue(int capacity) {
+		int size = Integer.highestOneBit(Math.max(capacity - 1, 1)) << 1;
+		mask = size - 1;
+		events = new int[size];
+		whens = new long[size];
+	}
+
+	/**
+	 * Adds an event, on the producer thread, and returns false if the queue is full.
+	 */
+	boolean offer(int event, long when) {
+		long t = tail.get();
+		if (t - head.get() > mask) {
+			return false;
+		}
+		int i = (int) t & mask;
+		events[i] = event;
+		whens[i] = when;
+		tail.lazySet(t + 1);
+		return true;
+	}
+
+	/**
+	 * Takes the next event, on the consumer thread, to be read with getEvent() and getWhen().
+	 * Returns false if there is none.
+	 */
+	boolean take() {
+		long h = head.get();
+		if (h == tail.get()) {
+			return false;
+		}
+		int i = (int) h & mask;
+		event = events[i];
+		when = whens[i];
+		head.lazySet(h + 1);
+		return true;
+	}
+
+	int getEvent() {
+		return event;
+	}
+
+	long getWhen() {
+		return when;
+	}
+}
@@ -0,0 +1,267 @@
+package johansteyn;
+
+import java.io.*;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * Every game ever played: its score, level reached, when it ended and how long it lasted.
+ * The games are kept in a file of fixed size records, in the order they were added,
+ * and an index file lists them by score, highest first, as (score, record) pairs.
+ * Both files are memory-mapped, so the rank of a score is a binary search of the index
+ * and the top n games are the first n index entries, without reading the rest of either file.
+ * Adding a game appends its record and then inserts it into the index, ahead of any equal scores.
+ * A game only counts once the record count is updated, and if the index doesn't agree with it
+ * when the files are opened, say after a crash part way through an insert, the index is rebuilt.
+ * The files grow GROWTH times over whenever they fill up, and the old mappings are released
+ * as soon as the new ones are made.
+ */
+public class Leaderboard implements Closeable {
+	private static final int MAGIC = 0x586e6c62;       // "Xnlb"
+	private static final int INDEX_MAGIC = 0x586e6978; // "Xnix"
+	private static final int VERSION = 1;
+	private static final int HEADER = 16;       // magic, version, count
+	private static final int RECORD = 24;       // score, level, timestamp, duration
+	private static final int ENTRY = 8;         // score, record
+	private static final int INITIAL_CAPACITY = 16 * 1024;
+	private static final int GROWTH = 4;
+	private RandomAccessFile dataFile;
+	private RandomAccessFile indexFile;
+	private MappedByteBuffer data;
+	private MappedByteBuffer index;
+	private int capacity; // records the files are mapped for
+	private int count;
+	private byte[] buffer = new byte[64 * 1024]; // for moving index entries
+
+	private Leaderboard() {
+	}
+
+	/**
+	 * Where the game keeps its leaderboard: in the directory given by the xonix.dir system property,
+	 * or else in .xonix in the user's home directory.
+	 */
+	public static File getDefaultFile() {
+		String dir = System.getProperty("xonix.dir");
+		if (dir == null) {
+			dir = new File(System.getProperty("user.home"), ".xonix").getPath();
+		}
+		return new File(dir, "leaderboard");
+	}
+
+	/**
+	 * Opens or creates the leaderboard in the given file, with its index next to it in a file ending in ".idx".
+	 */
+	public static Leaderboard open(File file) throws IOException {
+		Leaderboard leaderboard = new Leaderboard();
+		leaderboard.dataFile = new RandomAccessFile(file, "rw");
+		leaderboard.indexFile = new RandomAccessFile(file.getPath() + ".idx", "rw");
+		try {
+			leaderboard.load();
+		} catch (IOException ioe) {
+			leaderboard.close();
+			throw ioe;
+		}
+		return leaderboard;
+	}
+
+	private void load() throws IOException {
+		boolean empty = dataFile.length() < HEADER;
+		int records = empty ? 0 : (int) ((dataFile.length() - HEADER) / RECORD);
+		map(Math.max(records, INITIAL_CAPACITY));
+		if (empty) {
+			data.putInt(0, MAGIC);
+			data.putInt(4, VERSION);
+			data.putLong(8, 0);
+		} else if (data.getInt(0) != MAGIC || data.getInt(4) != VERSION) {
+			throw new IOException("Not a leaderboard");
+		}
+		count = (int) data.getLong(8);
+		if (index.getInt(0) != INDEX_MAGIC || index.getInt(4) != VERSION || index.getLong(8) != count) {
+			rebuild();
+		}
+	}
+
+	/**
+	 * Maps both files for at least the given number of records, growing them as needed,
+	 * and releases the old mappings.
+	 */
+	private void map(int records) throws IOException {
+		MappedByteBuffer oldData = data;
+		MappedByteBuffer oldIndex = index;
+		capacity = records;
+		data = dataFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, HEADER + (long) capacity * RECORD);
+		index = indexFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, HEADER + (long) capacity * ENTRY);
+		if (oldData != null) {
+			unmap(oldData);
+			unmap(oldIndex);
+		}
+	}
+
+	/**
+	 * Releases the given mapping right away, instead of whenever it is garbage collected,
+	 * which can be long after the file has been mapped again at a larger size.
+	 * Java has no public way to do this, so where the JDK's internal one can't be reached
+	 * the mapping is still left to the garbage collector. Nothing may use the buffer afterwards.
+	 */
+	private static void unmap(MappedByteBuffer buffer) {
+		try {
+			// Java 9 and later
+			Class unsafeClass = Class.forName("sun.misc.Unsafe");
+			Field field = unsafeClass.getDeclaredField("theUnsafe");
+			field.setAccessible(true);
+			Method invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+			invokeCleaner.invoke(field.get(null), buffer);
+			return;
+		} catch (Exception e) {
+			// Java 8, or not allowed
+		}
+		try {
+			Method cleanerMethod = buffer.getClass().getMethod("cleaner");
+			cleanerMethod.setAccessible(true);
+			Object cleaner = cleanerMethod.invoke(buffer);
+			if (cleaner != null) {
+				cleaner.getClass().getMethod("clean").invoke(cleaner);
+			}
+		} catch (Exception e) {
+			// Left to the garbage collector
+		}
+	}
+
+	/**
+	 * Sorts the records into a new index.
+	 */
+	private void rebuild() {
+		long[] keys = new long[count];
+		for (int record = 0; record < count; record++) {
+			int score = data.getInt(HEADER + record * RECORD);
+			// Highest score first, then latest record first
+			keys[record] = (long) (Integer.MAX_VALUE - score) << 32 | (Integer.MAX_VALUE - record);
+		}
+		Arrays.sort(keys);
+		for (int i = 0; i < count; i++) {
+			index.putInt(HEADER + i * ENTRY, Integer.MAX_VALUE - (int) (keys[i] >>> 32));
+			index.putInt(HEADER + i * ENTRY + 4, Integer.MAX_VALUE - (int) keys[i]);
+		}
+		index.putInt(0, INDEX_MAGIC);
+		index.putInt(4, VERSION);
+		index.putLong(8, count);
+	}
+
+	/**
+	 * Adds a game and returns its rank, from 0 for the best.
+	 */
+	public synchronized int add(int score, int level, long timestamp, long duration) throws IOException {
+		if (count == capacity) {
+			map(GROWTH * capacity);
+		}
+		int record = count;
+		int offset = HEADER + record * RECORD;
+		data.putInt(offset, score);
+		data.putInt(offset + 4, level);
+		data.putLong(offset + 8, timestamp);
+		data.putLong(offset + 16, duration);
+		data.putLong(8, count + 1);
+		int rank = rank(score);
+		move(rank, count - rank);
+		index.putInt(HEADER + rank * ENTRY, score);
+		index.putInt(HEADER + rank * ENTRY + 4, record);
+		count++;
+		index.putLong(8, count);
+		return rank;
+	}
+
+	/**
+	 * Moves the given number of index entries from the given rank one place down.
+	 */
+	private void move(int rank, int entries) {
+		int end = HEADER + (rank + entries) * ENTRY;
+		int start = HEADER + rank * ENTRY;
+		// Last chunk first, so nothing is overwritten before it has moved
+		while (end > start) {
+			int length = Math.min(buffer.length, end - start);
+			end -= length;
+			index.position(end);
+			index.get(buffer, 0, length);
+			index.position(end + ENTRY);
+			index.put(buffer, 0, length);
+		}
+	}
+
+	/**
+	 * The number of games with a higher score than the given one,
+	 * which is the rank a game with that score would be added at.
+	 */
+	public synchronized int rank(int score) {
+		int low = 0;
+		int high = count;
+		while (low < high) {
+			int middle = (low + high) >>> 1;
+			if (index.getInt(HEADER + middle * ENTRY) > score) {
+				low = middle + 1;
+			} else {
+				high = middle;
+			}
+		}
+		return low;
+	}
+
+	public synchronized int size() {
+		return count;
+	}
+
+	public synchronized int getScore(int rank) {
+		return index.getInt(HEADER + rank * ENTRY);
+	}
+
+	public synchronized int getLevel(int rank) {
+		return data.getInt(offset(rank) + 4);
+	}
+
+	/**
+	 * When the game at the given rank ended, in milliseconds since the epoch.
+	 */
+	public synchronized long getTimestamp(int rank) {
+		return data.getLong(offset(rank) + 8);
+	}
+
+	/**
+	 * How long the game at the given rank lasted, in milliseconds of game time.
+	 */
+	public synchronized long getDuration(int rank) {
+		return data.getLong(offset(rank) + 16);
+	}
+
+	private int offset(int rank) {
+		return HEADER + index.getInt(HEADER + rank * ENTRY + 4) * RECORD;
+	}
+
+	/**
+	 * Writes any changes through to the files.
+	 */
+	public synchronized void force() {
+		data.force();
+		index.force();
+	}
+
+	/**
+	 * Writes any changes through and releases the files, after which the leaderboard can't be used.
+	 */
+	public synchronized void close() throws IOException {
+		try {
+			if (data != null) {
+				force();
+				unmap(data);
+				unmap(index);
+				data = null;
+				index = null;
+			}
+		} finally {
+			dataFile.close();
+			indexFile.close();
+		}
+	}
+}
@@ -0,0 +1,122 @@
+package johansteyn;
+
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.net.URL;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import javax.imageio.ImageIO;
+
+/**
+ * An image drawn half transparent over the board, such as the one shown while paused.
+ * Images are loaded in the background, all at once, and until an image arrives
+ * its overlay is drawn as a plain box with a label instead.
+ * Whatever is drawn is scaled and made half transparent once for each size it is drawn at,
+ * into a compatible image, so that drawing it is a single unscaled copy.
+ */
+class Overlay {
+	private static final Color COLOR_PLACEHOLDER = Color.darkGray;
+	private static final Color COLOR_LABEL = Color.white;
+	private static final ExecutorService loader = Executors.newCachedThreadPool(new ThreadFactory() {
+		public Thread newThread(Runnable r) {
+			Thread thread = new Thread(r, "Overlay");
+			thread.setDaemon(true);
+			return thread;
+		}
+	});
+	private Component component;
+	private String label;
+	private volatile Image image;  // null until loaded
+	private volatile boolean done; // loading finished, whether or not it worked
+	private Image scaled;
+	private boolean scaledLoaded;  // scaled was made from the image rather than the placeholder
+
+	/**
+	 * Starts loading the named resource, repainting the component once it has loaded.
+	 */
+	Overlay(Component component, String name, String label) {
+		this.component = component;
+		this.label = label;
+		loader.execute(new Runnable() {
+			public void run() {
+				load(name);
+			}
+		});
+	}
+
+	private void load(String name) {
+		try {
+			URL url = null;
+			// First try the game's own class loader, then the CLASSPATH
+			ClassLoader cl = component.getClass().getClassLoader();
+			if (cl != null) {
+				url = cl.getResource(name);
+			}
+			if (url == null) {
+				url = ClassLoader.getSystemResource(name);
+			}
+			if (url == null) {
+				System.err.println("Image not found: " + name);
+				return;
+			}
+			image = ImageIO.read(url);
+		} catch (IOException ioe) {
+			ioe.printStackTrace();
+		} finally {
+			synchronized (this) {
+				done = true;
+				notifyAll();
+			}
+			component.repaint();
+		}
+	}
+
+	/**
+	 * Waits until loading has finished, whether or not it worked.
+	 */
+	synchronized void await() throws InterruptedException {
+		while (!done) {
+			wait();
+		}
+	}
+
+	synchronized void draw(Graphics g, int x, int y, int width, int height) {
+		if (width <= 0 || height <= 0) {
+			return;
+		}
+		Image image = this.image;
+		if (scaled == null || scaled.getWidth(null) != width || scaled.getHeight(null) != height ||
+			scaledLoaded != (image != null)) {
+			scaled = scale(image, width, height);
+			scaledLoaded = image != null;
+		}
+		g.drawImage(scaled, x, y, null);
+	}
+
+	private Image scale(Image image, int width, int height) {
+		GraphicsConfiguration gc = component.getGraphicsConfiguration();
+		BufferedImage result;
+		if (gc != null) {
+			result = gc.createCompatibleImage(width, height, Transparency.TRANSLUCENT);
+		} else {
+			result = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+		}
+		Graphics2D g = result.createGraphics();
+		g.setComposite(AlphaComposite.getInstance(AlphaComposite.SRC_OVER, 0.5f));
+		if (image != null) {
+			g.drawImage(image, 0, 0, width, height, null);
+		} else {
+			g.setColor(COLOR_PLACEHOLDER);
+			g.fillRect(0, 0, width, height);
+			Font font = new Font("SansSerif", Font.BOLD, Math.max(height / 2, 1));
+			FontMetrics fm = g.getFontMetrics(font);
+			g.setFont(font);
+			g.setColor(COLOR_LABEL);
+			g.drawString(label, (width - fm.stringWidth(label)) / 2, (height + fm.getAscent() - fm.getDescent()) / 2);
+		}
+		g.dispose();
+		return result;
+	}
+}
@@ -0,0 +1,21 @@
+package johansteyn;
+
+import java.util.Random;
+
+/**
+ * Wanders around the board, turning in a random direction every so often.
+ */
+public class RandomStrategy implements Strategy {
+	private Random random;
+
+	public void start(GameModel model) {
+		random = new Random(model.getSeed());
+	}
+
+	public int next(GameModel model) {
+		if (random.nextInt(8) != 0) {
+			return GameModel.NONE;
+		}
+		return GameModel.UP + random.nextInt(4);
+	}
+}
@@ -0,0 +1,200 @@
+package johansteyn;
+
+import java.io.*;
+
+/**
+ * A record of a single game: the board size, level and seed it started with,
+ * and the input and tick length of every tick that had input or a change of tick length.
+ * Replaying it on a new model repeats the game exactly, so the final hash and score
+ * of a finished game can be checked.
+ */
+public class Recording {
+	private static final int MAGIC = 0x586f6e78; // "Xonx"
+	private static final int VERSION = 2; // 2: new enemies never start on top of another
+	private int rows;
+	private int cols;
+	private int level;
+	private long seed;
+	private int count;
+	private long[] ticks = new long[64];
+	private int[] inputs = new int[64];
+	private int[] tickMillis = new int[64];
+	private int lastTickMillis;
+	private boolean ended;
+	private long length;
+	private long hash;
+	private int score;
+
+	void start(int rows, int cols, int level, long seed) {
+		this.rows = rows;
+		this.cols = cols;
+		this.level = level;
+		this.seed = seed;
+		count = 0;
+		lastTickMillis = 0;
+		ended = false;
+	}
+
+	void add(long tick, int input, int millis) {
+		if (input == GameModel.NONE && millis == lastTickMillis) {
+			return;
+		}
+		if (count == ticks.length) {
+			ticks = grow(ticks);
+			inputs = grow(inputs);
+			tickMillis = grow(tickMillis);
+		}
+		ticks[count] = tick;
+		inputs[count] = input;
+		tickMillis[count] = millis;
+		count++;
+		lastTickMillis = millis;
+	}
+
+	void end(long length, long hash, int score) {
+		this.length = length;
+		this.hash = hash;
+		this.score = score;
+		ended = true;
+	}
+
+	public boolean isEnded() {
+		return ended;
+	}
+
+	public long getLength() {
+		return length;
+	}
+
+	public long getHash() {
+		return hash;
+	}
+
+	public int getScore() {
+		return score;
+	}
+
+	/**
+	 * A copy of this recording, which stays as it is while this one goes on to record the next game.
+	 */
+	Recording copy() {
+		Recording copy = new Recording();
+		copy.rows = rows;
+		copy.cols = cols;
+		copy.level = level;
+		copy.seed = seed;
+		copy.count = count;
+		copy.ticks = ticks.clone();
+		copy.inputs = inputs.clone();
+		copy.tickMillis = tickMillis.clone();
+		copy.lastTickMillis = lastTickMillis;
+		copy.ended = ended;
+		copy.length = length;
+		copy.hash = hash;
+		copy.score = score;
+		return copy;
+	}
+
+	/**
+	 * Plays the recorded game again on a new model, as fast as possible,
+	 * up to the end of the game or the last recorded input if it never ended.
+	 */
+	public GameModel replay() {
+		GameModel model = new GameModel(rows, cols);
+		model.reset(level, seed);
+		long end = ended ? length : (count > 0 ? ticks[count - 1] + 1 : 0);
+		int next = 0;
+		for (long tick = 0; tick < end; tick++) {
+			int input = GameModel.NONE;
+			if (next < count && ticks[next] == tick) {
+				model.setTickMillis(tickMillis[next]);
+				input = inputs[next];
+				next++;
+			}
+			model.step(input);
+		}
+		return model;
+	}
+
+	/**
+	 * Replays a finished game and checks that it ends with the same board and score.
+	 */
+	public boolean verify() {
+		return ended && matches(replay());
+	}
+
+	/**
+	 * Checks that the given model ended the same way as the recorded game.
+	 */
+	public boolean matches(GameModel model) {
+		return ended &&
+			model.isGameOver() &&
+			model.getTicks() == length &&
+			model.hash() == hash &&
+			model.getTotal() == score;
+	}
+
+	public void save(File file) throws IOException {
+		DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+		try {
+			dos.writeInt(MAGIC);
+			dos.writeInt(VERSION);
+			dos.writeInt(rows);
+			dos.writeInt(cols);
+			dos.writeInt(level);
+			dos.writeLong(seed);
+			dos.writeInt(count);
+			for (int i = 0; i < count; i++) {
+				dos.writeLong(ticks[i]);
+				dos.writeByte(inputs[i]);
+				dos.writeInt(tickMillis[i]);
+			}
+			dos.writeBoolean(ended);
+			dos.writeLong(length);
+			dos.writeLong(hash);
+			dos.writeInt(score);
+		} finally {
+			dos.close();
+		}
+	}
+
+	public static Recording load(File file) throws IOException {
+		DataInputStream dis = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+		try {
+			if (dis.readInt() != MAGIC || dis.readInt() != VERSION) {
+				throw new IOException("Not a recording: " + file);
+			}
+			Recording recording = new Recording();
+			recording.start(dis.readInt(), dis.readInt(), dis.readInt(), dis.readLong());
+			int count = dis.readInt();
+			for (int i = 0; i < count; i++) {
+				long tick = dis.readLong();
+				int input = dis.readByte();
+				int millis = dis.readInt();
+				recording.add(tick, input, millis);
+			}
+			boolean ended = dis.readBoolean();
+			long length = dis.readLong();
+			long hash = dis.readLong();
+			int score = dis.readInt();
+			if (ended) {
+				recording.end(length, hash, score);
+			}
+			return recording;
+		} finally {
+			dis.close();
+		}
+	}
+
+	private static long[] grow(long[] array) {
+		long[] newArray = new long[2 * array.length];
+		System.arraycopy(array, 0, newArray, 0, array.length);
+		return newArray;
+	}
+
+	private static int[] grow(int[] array) {
+		int[] newArray = new int[2 * array.length];
+		System.arraycopy(array, 0, newArray, 0, array.length);
+		return newArray;
+	}
+}
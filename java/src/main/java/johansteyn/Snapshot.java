@@ -0,0 +1,74 @@
+package johansteyn;
+
+import java.awt.*;
+
+/**
+ * What the game looked like at the end of a tick, for drawing while the next ticks run:
+ * an image of the board, the pieces before and after the tick, and the time left.
+ * The Animator fills in a snapshot and then publishes it, after which it is only read,
+ * until whoever draws frames has taken a newer one and hands it back for reuse.
+ */
+class Snapshot {
+	BoardImage board;
+	int width;                    // the size of the game it was made for
+	int height;
+	int cellWidth;
+	int cellHeight;
+	int colsPerPixel;             // cells to each cell drawn, when the board has more cells than the game has pixels
+	int rowsPerPixel;
+	long ticks;
+	long tickNanos;               // when the tick ran
+	int percentageTime;
+	int count;                    // pieces, player first
+	int[] pieceRows = new int[16];
+	int[] pieceCols = new int[16];
+	int moved;                    // pieces with a position from before the tick
+	int[] oldRows = new int[16];
+	int[] oldCols = new int[16];
+
+	Snapshot(Color[] colors, Color spareBorder) {
+		board = new BoardImage(colors, spareBorder);
+	}
+
+	/**
+	 * Where the given column is drawn.
+	 */
+	int x(int col) {
+		return col / colsPerPixel * cellWidth;
+	}
+
+	/**
+	 * Where the given row is drawn.
+	 */
+	int y(int row) {
+		return row / rowsPerPixel * cellHeight;
+	}
+
+	/**
+	 * Copies the pieces and time left of the given game, with the first moved of the
+	 * given positions from before the tick.
+	 */
+	void load(GameModel model, long tickNanos, int[] oldRows, int[] oldCols, int moved) {
+		count = model.getEnemyCount() + 1;
+		if (pieceRows.length < count) {
+			pieceRows = new int[2 * count];
+			pieceCols = new int[2 * count];
+		}
+		if (this.oldRows.length < moved) {
+			this.oldRows = new int[2 * moved];
+			this.oldCols = new int[2 * moved];
+		}
+		pieceRows[0] = model.getPlayerRow();
+		pieceCols[0] = model.getPlayerCol();
+		for (int i = 1; i < count; i++) {
+			pieceRows[i] = model.getEnemyRow(i - 1);
+			pieceCols[i] = model.getEnemyCol(i - 1);
+		}
+		System.arraycopy(oldRows, 0, this.oldRows, 0, moved);
+		System.arraycopy(oldCols, 0, this.oldCols, 0, moved);
+		this.moved = moved;
+		this.tickNanos = tickNanos;
+		ticks = model.getTicks();
+		percentageTime = model.getPercentageTime();
+	}
+}
@@ -0,0 +1,17 @@
+package johansteyn;
+
+/**
+ * An automated player, as used by the Tournament.
+ * Each game gets its own instance, so a strategy may keep state between ticks.
+ */
+public interface Strategy {
+	/**
+	 * Called once a new game has been started on the model.
+	 */
+	void start(GameModel model);
+
+	/**
+	 * Returns the input for the next tick: GameModel.NONE, GameModel.STOP or a direction.
+	 */
+	int next(GameModel model);
+}
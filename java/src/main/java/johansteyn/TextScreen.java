@@ -0,0 +1,136 @@
+package johansteyn;
+
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+
+/**
+ * A screen of text covering the whole game, such as help: a heading with lines of text below it.
+ * The text is measured once at REFERENCE_SIZE for each content, and the fonts for a size
+ * are scaled from that. The screen is drawn into an image once for each content and size,
+ * so repainting it is a single copy.
+ * New lines of text are handed over by replacing the list, never by changing it, and the image is
+ * handed back with what it was drawn from, so neither replacing the text nor drawing takes a lock.
+ */
+class TextScreen {
+	private static final int REFERENCE_SIZE = 100;
+	private String heading;
+	private volatile ArrayList strings;
+	private int lines;      // lines of text the screen makes room for
+	private Color background;
+	private Color headingColor;
+	private Color textColor;
+	private volatile Rendering rendering; // the last image drawn
+
+	TextScreen(String heading, ArrayList strings, int lines, Color background, Color headingColor, Color textColor) {
+		this.heading = heading;
+		this.strings = strings;
+		this.lines = lines;
+		this.background = background;
+		this.headingColor = headingColor;
+		this.textColor = textColor;
+	}
+
+	/**
+	 * The image of the screen at one size, and the text and measurements it was drawn from.
+	 */
+	private static class Rendering {
+		ArrayList strings;
+		int headingWidth; // at REFERENCE_SIZE
+		String longest;
+		int width;
+		int height;
+		Image image;
+	}
+
+	/**
+	 * Replaces the lines of text, to be drawn from the next repaint on.
+	 * The list must not be changed after this.
+	 */
+	void setStrings(ArrayList strings) {
+		this.strings = strings;
+	}
+
+	void draw(Graphics g, Component component, int width, int height) {
+		if (width <= 0 || height <= 0) {
+			return;
+		}
+		ArrayList strings = this.strings;
+		Rendering last = rendering;
+		if (last == null || last.strings != strings || last.width != width || last.height != height) {
+			last = render(component, strings, last, width, height);
+			rendering = last;
+		}
+		g.drawImage(last.image, 0, 0, null);
+	}
+
+	/**
+	 * Draws the given text at the given size, measuring it unless the last rendering was of the same text.
+	 */
+	private Rendering render(Component component, ArrayList strings, Rendering last, int width, int height) {
+		GraphicsConfiguration gc = component.getGraphicsConfiguration();
+		Image result;
+		if (gc != null) {
+			result = gc.createCompatibleImage(width, height);
+		} else {
+			result = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+		}
+		Graphics g = result.getGraphics();
+		Rendering rendering = new Rendering();
+		rendering.strings = strings;
+		rendering.width = width;
+		rendering.height = height;
+		rendering.image = result;
+		if (last != null && last.strings == strings) {
+			rendering.headingWidth = last.headingWidth;
+			rendering.longest = last.longest;
+		} else {
+			measure(g, rendering);
+		}
+		int headingWidth = rendering.headingWidth;
+		g.setColor(background);
+		g.fillRect(0, 0, width, height);
+		int fontSize = Math.max(height / (lines + 2) - 2, 1);
+		// The largest heading that fits, going down from twice the text size in steps of 4
+		int headingFontSize = 2 * fontSize;
+		int fitting = (int) ((long) (width - 1) * REFERENCE_SIZE / Math.max(headingWidth, 1));
+		if (headingFontSize > fitting) {
+			headingFontSize -= (headingFontSize - fitting + 3) / 4 * 4;
+		}
+		Font font = new Font("Monospaced", Font.BOLD, Math.max(headingFontSize, 1));
+		FontMetrics fm = g.getFontMetrics(font);
+		// Widths don't scale exactly with size, so check the estimate
+		while (fm.stringWidth(heading) >= width && headingFontSize > 4) {
+			headingFontSize -= 4;
+			font = new Font("Monospaced", Font.BOLD, headingFontSize);
+			fm = g.getFontMetrics(font);
+		}
+		g.setColor(headingColor);
+		g.setFont(font);
+		g.drawString(heading, (width - fm.stringWidth(heading)) / 2, headingFontSize);
+		font = new Font("Monospaced", Font.PLAIN, fontSize);
+		fm = g.getFontMetrics(font);
+		int fw = fm.stringWidth(rendering.longest);
+		g.setColor(textColor);
+		g.setFont(font);
+		for (int i = 0; i < strings.size() && i < lines; i++) {
+			String s = (String) strings.get(i);
+			g.drawString(s, (width - fw) / 2, (i + 3) * fontSize);
+		}
+		g.dispose();
+		return rendering;
+	}
+
+	private void measure(Graphics g, Rendering rendering) {
+		String longest = "";
+		for (int i = 0; i < rendering.strings.size(); i++) {
+			String s = (String) rendering.strings.get(i);
+			if (s.length() > longest.length()) {
+				longest = s;
+			}
+		}
+		rendering.longest = longest;
+		Font font = new Font("Monospaced", Font.BOLD, REFERENCE_SIZE);
+		rendering.headingWidth = g.getFontMetrics(font).stringWidth(heading);
+	}
+}
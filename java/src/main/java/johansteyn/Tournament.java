@@ -0,0 +1,208 @@
+package johansteyn;
+
+import java.util.ArrayList;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Plays many games of an automated player without display, as fast as possible,
+ * spread over a fixed pool of threads, and reports the scores, levels and ticks.
+ * Game i is seeded with seed + i, so a tournament gives the same results
+ * however many threads it runs on.
+ */
+public class Tournament {
+	protected static final int DEFAULT_GAMES = 1000;
+	protected static final int DEFAULT_MAX_TICKS = 1000000;
+	protected static int games = DEFAULT_GAMES;
+	protected static int threads = Runtime.getRuntime().availableProcessors();
+	protected static long seed = 1;
+	protected static int level = 1;
+	protected static int rows = GameModel.DEFAULT_ROWS;
+	protected static int cols = GameModel.DEFAULT_COLS;
+	protected static int maxTicks = DEFAULT_MAX_TICKS;
+	protected static String strategy = RandomStrategy.class.getName();
+	protected static boolean verbose;
+
+	public static void main(String[] args) throws Exception {
+		parse(args);
+		Class strategyClass = null;
+		try {
+			strategyClass = Class.forName(strategy);
+			strategyClass.getDeclaredConstructor().newInstance();
+		} catch (ReflectiveOperationException roe) {
+			System.out.println("Invalid strategy: " + strategy + " (" + roe + ")");
+			System.exit(1);
+		}
+		Results results = run(strategyClass, games, threads);
+		results.print(System.out);
+		System.exit(0);
+	}
+
+	protected static void parse(String[] args) {
+		for (int i = 0; i < args.length; i++) {
+			try {
+				if (args[i].equals("-n")) {
+					games = Integer.parseInt(args[++i]);
+					continue;
+				}
+				if (args[i].equals("-t")) {
+					threads = Integer.parseInt(args[++i]);
+					continue;
+				}
+				if (args[i].equals("-s")) {
+					seed = Long.parseLong(args[++i]);
+					continue;
+				}
+				if (args[i].equals("-l")) {
+					level = Integer.parseInt(args[++i]);
+					continue;
+				}
+				if (args[i].equals("-r")) {
+					rows = Integer.parseInt(args[++i]);
+					continue;
+				}
+				if (args[i].equals("-c")) {
+					cols = Integer.parseInt(args[++i]);
+					continue;
+				}
+				if (args[i].equals("-m")) {
+					maxTicks = Integer.parseInt(args[++i]);
+					continue;
+				}
+				if (args[i].equals("-p")) {
+					strategy = args[++i];
+					continue;
+				}
+				if (args[i].equals("-v")) {
+					verbose = true;
+					continue;
+				}
+			} catch (RuntimeException re) {
+				// Missing or invalid number
+			}
+			usage();
+			System.exit(1);
+		}
+		if (games < 1 || threads < 1 || level < 1 || maxTicks < 1 ||
+			rows < GameModel.MIN_SIZE || cols < GameModel.MIN_SIZE) {
+			usage();
+			System.exit(1);
+		}
+	}
+
+	protected static void usage() {
+		System.out.println("");
+		System.out.println("USAGE:");
+		System.out.println("  $ java -cp xonix.jar johansteyn.Tournament [-n games] [-t threads] [-s seed] [-l level] [-r rows] [-c cols] [-m ticks] [-p strategy] [-v]");
+		System.out.println("");
+		System.out.println("WHERE:");
+		System.out.println("    games = Number of games to play (default " + DEFAULT_GAMES + ")");
+		System.out.println("    threads = Number of threads to play on (default one per processor)");
+		System.out.println("    seed = Seed of the first game, each next game adds 1 (default 1)");
+		System.out.println("    level = Level to start each game at (default 1)");
+		System.out.println("    rows = Number of rows on the board (at least " + GameModel.MIN_SIZE + ")");
+		System.out.println("    cols = Number of columns on the board (at least " + GameModel.MIN_SIZE + ")");
+		System.out.println("    ticks = Most ticks in a single game (default " + DEFAULT_MAX_TICKS + ")");
+		System.out.println("    strategy = Class name of the Strategy to play with (default " + RandomStrategy.class.getName() + ")");
+		System.out.println("    -v = Print the result of every game");
+		System.out.println("");
+	}
+
+	/**
+	 * Plays the games on a pool of the given number of threads.
+	 * Each thread takes the next game to play from a shared counter and keeps its own results,
+	 * which are only combined at the end.
+	 */
+	public static Results run(final Class strategyClass, final int games, int threads) throws Exception {
+		final AtomicInteger next = new AtomicInteger();
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
+		long start = System.nanoTime();
+		ArrayList futures = new ArrayList();
+		for (int t = 0; t < threads; t++) {
+			futures.add(pool.submit(new Callable() {
+				public Object call() throws Exception {
+					Results results = new Results();
+					GameModel model = new GameModel(rows, cols);
+					int game;
+					while ((game = next.getAndIncrement()) < games) {
+						Strategy player = (Strategy) strategyClass.getDeclaredConstructor().newInstance();
+						play(model, player, seed + game);
+						results.add(model);
+						if (verbose) {
+							System.out.println("Game " + game + " Seed " + model.getSeed() + " Level " + model.getLevel() + " Score " + model.getScore() + " Ticks " + model.getTicks());
+						}
+					}
+					return results;
+				}
+			}));
+		}
+		Results results = new Results();
+		try {
+			for (int i = 0; i < futures.size(); i++) {
+				results.add((Results) ((Future) futures.get(i)).get());
+			}
+		} finally {
+			pool.shutdownNow();
+		}
+		results.nanos = System.nanoTime() - start;
+		return results;
+	}
+
+	/**
+	 * Plays a single game to its end, or until it has run for maxTicks.
+	 */
+	public static void play(GameModel model, Strategy player, long seed) {
+		model.reset(level, seed);
+		player.start(model);
+		while (!model.isGameOver() && model.getTicks() < maxTicks) {
+			model.step(player.next(model));
+		}
+	}
+
+	public static class Results {
+		int games;
+		long score;
+		int minScore = Integer.MAX_VALUE;
+		int maxScore;
+		long levels;
+		int maxLevel;
+		long ticks;
+		int unfinished;
+		long nanos;
+
+		void add(GameModel model) {
+			int score = model.getScore();
+			games++;
+			this.score += score;
+			minScore = Math.min(minScore, score);
+			maxScore = Math.max(maxScore, score);
+			levels += model.getLevel();
+			maxLevel = Math.max(maxLevel, model.getLevel());
+			ticks += model.getTicks();
+			if (!model.isGameOver()) {
+				unfinished++;
+			}
+		}
+
+		void add(Results results) {
+			games += results.games;
+			score += results.score;
+			minScore = Math.min(minScore, results.minScore);
+			maxScore = Math.max(maxScore, results.maxScore);
+			levels += results.levels;
+			maxLevel = Math.max(maxLevel, results.maxLevel);
+			ticks += results.ticks;
+			unfinished += results.unfinished;
+		}
+
+		void print(java.io.PrintStream out) {
+			double seconds = nanos / 1e9;
+			out.println("Games      " + games + (unfinished > 0 ? " (" + unfinished + " stopped at " + maxTicks + " ticks)" : ""));
+			out.println("Score      mean " + (double) score / games + " min " + minScore + " max " + maxScore);
+			out.println("Level      mean " + (double) levels / games + " max " + maxLevel);
+			out.println("Ticks      " + ticks + " mean " + ticks / games);
+			out.println("Time       " + Math.round(seconds * 1000) + " ms");
+			out.println("Throughput " + Math.round(games / seconds) + " games/s " + Math.round(ticks / seconds) + " ticks/s");
+		}
+	}
+}
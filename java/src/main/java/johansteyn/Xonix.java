@@ -2,16 +2,28 @@ package johansteyn;
 
 import java.awt.*;
 import java.awt.event.*;
+import java.io.*;
 import java.util.ArrayList;
 
 public class Xonix extends Frame {
 	protected static final int DEFAULT_WIDTH = 240;
 	protected static final int DEFAULT_HEIGHT = 320;
+	protected static final int DEFAULT_FPS = 60;
 	protected static Dimension size;
+	protected static int rows = GameModel.DEFAULT_ROWS;
+	protected static int cols = GameModel.DEFAULT_COLS;
+	protected static boolean active;
+	protected static int fps = DEFAULT_FPS;
+	protected static String record;
+	protected static String replay;
+	protected static boolean timed;
 	private Status status;
 
 	public static void main(String[] args) throws Exception {
 		parse(args);
+		if (replay != null) {
+			System.exit(replay(replay) ? 0 : 1);
+		}
 		Frame frame = new Xonix(size);
 		frame.setVisible(true);
 	}
@@ -43,6 +55,64 @@ public class Xonix extends Frame {
 					}
 					continue;
 				}
+				if (args[i].equals("-r")) {
+					try {
+						rows = Integer.parseInt(args[++i]);
+					} catch (NumberFormatException nfe) {
+						rows = 0;
+					}
+					if (rows < GameModel.MIN_SIZE) {
+						usage();
+						System.out.println("Invalid rows: " + args[i]);
+						System.out.println("");
+						System.exit(1);
+					}
+					continue;
+				}
+				if (args[i].equals("-c")) {
+					try {
+						cols = Integer.parseInt(args[++i]);
+					} catch (NumberFormatException nfe) {
+						cols = 0;
+					}
+					if (cols < GameModel.MIN_SIZE) {
+						usage();
+						System.out.println("Invalid cols: " + args[i]);
+						System.out.println("");
+						System.exit(1);
+					}
+					continue;
+				}
+				if (args[i].equals("-a")) {
+					active = true;
+					continue;
+				}
+				if (args[i].equals("-f")) {
+					try {
+						fps = Integer.parseInt(args[++i]);
+					} catch (NumberFormatException nfe) {
+						fps = -1;
+					}
+					if (fps < 0) {
+						usage();
+						System.out.println("Invalid fps: " + args[i]);
+						System.out.println("");
+						System.exit(1);
+					}
+					continue;
+				}
+				if (args[i].equals("-t")) {
+					timed = true;
+					continue;
+				}
+				if (args[i].equals("-o") && i + 1 < args.length) {
+					record = args[++i];
+					continue;
+				}
+				if (args[i].equals("-p") && i + 1 < args.length) {
+					replay = args[++i];
+					continue;
+				}
 				usage();
 				System.exit(1);
 			}
@@ -53,18 +123,60 @@ public class Xonix extends Frame {
 	protected static void usage() {
 		System.out.println("");
 		System.out.println("USAGE:");
-		System.out.println("  $ java Xonix [-w width] [-h height]");
+		System.out.println("  $ java Xonix [-w width] [-h height] [-r rows] [-c cols] [-a] [-f fps] [-o file] [-t]");
+		System.out.println("  $ java Xonix -p file");
 		System.out.println("");
 		System.out.println("WHERE:");
 		System.out.println("    width = Width of demo in pixels");
 		System.out.println("    height = Height of demo in pixels");
+		System.out.println("    rows = Number of rows on the board (at least " + GameModel.MIN_SIZE + ")");
+		System.out.println("    cols = Number of columns on the board (at least " + GameModel.MIN_SIZE + ")");
+		System.out.println("    -a = Active rendering through a page-flipping buffer strategy");
+		System.out.println("    fps = Maximum frames per second with active rendering, 0 for no limit (default " + DEFAULT_FPS + ")");
+		System.out.println("    -o file = Record each game to file");
+		System.out.println("    -t = Print the time taken to draw the first frame, and the input latency of each game");
+		System.out.println("    -p file = Replay a recorded game without display and check its outcome");
+		System.out.println("");
+		System.out.println("Every game is kept in a leaderboard in ~/.xonix, or in the directory given by -Dxonix.dir=dir");
 		System.out.println("");
 	}
 
+	/**
+	 * Replays a recorded game at full speed and reports whether it ended as recorded.
+	 */
+	protected static boolean replay(String name) {
+		Recording recording;
+		try {
+			recording = Recording.load(new File(name));
+		} catch (IOException ioe) {
+			System.out.println("Cannot load recording: " + ioe.getMessage());
+			return false;
+		}
+		long start = System.nanoTime();
+		GameModel model = recording.replay();
+		long millis = (System.nanoTime() - start) / 1000000;
+		System.out.println("Replayed " + model.getTicks() + " ticks in " + millis + " ms");
+		System.out.println("Level " + model.getLevel() + " Score " + model.getScore() + " Hash " + Long.toHexString(model.hash()));
+		if (!recording.isEnded()) {
+			System.out.println("Recorded game did not end, nothing to check");
+			return true;
+		}
+		if (!recording.matches(model)) {
+			System.out.println("MISMATCH: recorded Score " + recording.getScore() + " Hash " + Long.toHexString(recording.getHash()));
+			return false;
+		}
+		System.out.println("OK");
+		return true;
+	}
+
 	public Xonix(Dimension size) throws Exception {
 		setBackground(Color.white);
 		setLayout(new BorderLayout());
-		Game game = new Game();
+		Game game = new Game(rows, cols, active, fps);
+		if (record != null) {
+			game.record(new File(record));
+		}
+		game.setTimed(timed);
 		status = new Status();
 		add(game, BorderLayout.CENTER);
 		add(status, BorderLayout.SOUTH);
@@ -101,25 +213,24 @@ public class Xonix extends Frame {
 		return status.getText();
 	}
 
+	/**
+	 * One line of centred text. The font metrics are looked up once, and each text is measured once, when it is set.
+	 */
 	class Status extends Component {
 		private String text = "";
 		private Font font = new Font("sanserif", Font.BOLD, 12);
-		private Dimension preferredSize;
+		private FontMetrics fm;
+		private int textWidth;
 
 		public Status() {
 			setBackground(Game.COLOR_OUTSIDE);
 			setForeground(Color.black);
+			fm = getFontMetrics(font);
 		}
 
 		public void setText(String text) {
 			this.text = text;
-			if (status.isShowing()) {
-				Graphics g = getGraphics();
-				FontMetrics fm = g.getFontMetrics(font);
-				int fw = fm.stringWidth(text);
-				int fh = fm.getHeight();
-				preferredSize = new Dimension(fw + 4, fh + 4);
-			}
+			textWidth = fm.stringWidth(text);
 		}
 
 		public String getText() {
@@ -127,14 +238,7 @@ public class Xonix extends Frame {
 		}
 
 		public Dimension getPreferredSize() {
-			if (preferredSize == null) {
-				Graphics g = getGraphics();
-				FontMetrics fm = g.getFontMetrics(font);
-				int fw = fm.stringWidth(text);
-				int fh = fm.getHeight();
-				preferredSize = new Dimension(fw + 4, fh + 4);
-			}
-			return preferredSize;
+			return new Dimension(textWidth + 4, fm.getHeight() + 4);
 		}
 
 		public Dimension getMinimumSize() {
@@ -153,10 +257,7 @@ public class Xonix extends Frame {
 			g.fillRect(0, 0, size.width, size.height);
 			g.setColor(foreground);
 			g.setFont(font);
-			FontMetrics fm = g.getFontMetrics(font);
-			int w = fm.stringWidth(text);
-			g.drawString(text, (size.width - w) / 2, 2 * size.height / 3);
+			g.drawString(text, (size.width - textWidth) / 2, 2 * size.height / 3);
 		}
 	 }
 }
-